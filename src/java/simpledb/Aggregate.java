@@ -1,22 +1,60 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by a single column. Several aggregates are computed in one
+ * pass over the child, sharing one table of groups.
+ * <p>
+ * The groups are kept in memory up to a memory budget. The tuples of groups
+ * that do not fit are hashed by their group-by value to partitions in
+ * temporary heap files, and each partition is aggregated the same way once
+ * the groups in memory have been returned, splitting it further by other
+ * bits of the hash if its groups do not fit either.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory the groups of an aggregate may take. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /**
+     * Estimated memory a group takes besides its group-by value and its
+     * aggregates: its slot in the group index and its result tuple.
+     */
+    private static final int GROUP_BYTES = 96;
+    /** Estimated memory the running state and result of an aggregate take. */
+    private static final int AGGREGATE_BYTES = 32;
+    /** Number of partitions the tuples of groups that do not fit go to. */
+    private static final int SPILL_PARTITIONS = 16;
+    /**
+     * Each level of partitioning uses 4 other bits of the hash; partitions
+     * spilled at the last level are aggregated in memory whatever their size.
+     */
+    private static final int MAX_SPILL_LEVEL = 7;
+
     private OpIterator child;
-    private int aggregateField;
+    private int[] aggregateFields;
     private int groupField;
-    private Aggregator.Op aggregateOp;
-    private Aggregator aggregator;
+    private Aggregator.Op[] aggregateOps;
     private OpIterator aggOpIter;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    /** Spilled partitions that are still to be aggregated. */
+    private Deque<Spill> spills = new ArrayDeque<Spill>();
+    private int numSpills;
+
+    /** A partition spilled to disk, and the level it was spilled at. */
+    private static class Spill {
+        final SpillFile file;
+        final int level;
+
+        Spill(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
 
     /**
      * Constructor.
@@ -32,17 +70,56 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop }, gfield);
+    }
+
+    /**
+     * Constructor for several aggregates, computed in one pass over child.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops    The aggregation operator to use on each column of afields
+     * @param gfield  The column over which we are grouping the result, or -1 if
+     *                there is no grouping
+     * @throws IllegalArgumentException if an operator is not supported on the
+     *                                  type of its column
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int gfield) {
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("Need one operator for each of at least one aggregate field");
+        }
         this.child = child;
-        this.aggregateField = afield;
+        this.aggregateFields = afields.clone();
         this.groupField = gfield;
-        this.aggregateOp = aop;
+        this.aggregateOps = aops.clone();
+        // fails now on operators the fields do not support
+        newAggregator();
+    }
 
-        Type gfieldType = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
-        if (Type.INT_TYPE.equals(child.getTupleDesc().getFieldType(afield))) {
-            this.aggregator = new IntegerAggregator(gfield, gfieldType, afield, aop);
-        } else if (Type.STRING_TYPE.equals(child.getTupleDesc().getFieldType(afield))) {
-            this.aggregator = new StringAggregator(gfield, gfieldType, afield, aop);
+    private Aggregator newAggregator() {
+        TupleDesc td = this.child.getTupleDesc();
+        Type gfieldType = this.groupField == -1 ? null : td.getFieldType(this.groupField);
+        Type[] afieldTypes = new Type[this.aggregateFields.length];
+        for (int i = 0; i < afieldTypes.length; i++) {
+            afieldTypes[i] = td.getFieldType(this.aggregateFields[i]);
         }
+        return new MultiAggregator(this.groupField, gfieldType, this.aggregateFields, afieldTypes, this.aggregateOps);
+    }
+
+    /**
+     * Sets how much memory the groups of this aggregate may take before the
+     * tuples of further groups are spilled to disk. Takes effect on the next
+     * open.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk since the last open
+     */
+    public int numSpills() {
+        return this.numSpills;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -80,7 +157,7 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return this.aggregateField;
+        return this.aggregateFields[0];
     }
 
     /**
@@ -89,7 +166,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return this.child.getTupleDesc().getFieldName(this.aggregateField);
+        return aggregateFieldName(0);
     }
 
     /**
@@ -97,46 +174,138 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return this.aggregateOp;
+        return this.aggregateOps[0];
+    }
+
+    /**
+     * @return the number of aggregates computed
+     */
+    public int numAggregates() {
+        return this.aggregateFields.length;
+    }
+
+    /**
+     * @return the field of the i-th aggregate
+     */
+    public int aggregateField(int i) {
+        return this.aggregateFields[i];
+    }
+
+    /**
+     * @return the name of the field of the i-th aggregate in the <b>OUTPUT</b>
+     * tuples
+     */
+    public String aggregateFieldName(int i) {
+        return this.child.getTupleDesc().getFieldName(this.aggregateFields[i]);
+    }
+
+    /**
+     * @return the operator of the i-th aggregate
+     */
+    public Aggregator.Op aggregateOp(int i) {
+        return this.aggregateOps[i];
     }
 
     public void open() throws NoSuchElementException, DbException, TransactionAbortedException {
         // some code goes here
+        this.numSpills = 0;
         this.child.open();
-        while (this.child.hasNext()) {
-            this.aggregator.mergeTupleIntoGroup(this.child.next());
-        }
+        this.aggOpIter = aggregate(this.child, 0);
         this.child.close();
-        this.aggOpIter = this.aggregator.iterator();
         this.aggOpIter.open();
         super.open();
     }
 
+    /**
+     * Aggregates the groups of input that fit in the memory budget, and
+     * spills the tuples of the other groups to partitions for level + 1.
+     *
+     * @return an iterator over the groups aggregated in memory
+     */
+    private OpIterator aggregate(OpIterator input, int level) throws DbException, TransactionAbortedException {
+        Aggregator aggregator = newAggregator();
+        int maxGroups = level > MAX_SPILL_LEVEL ? Integer.MAX_VALUE : maxGroups();
+        SpillFile[] partitions = new SpillFile[SPILL_PARTITIONS];
+        try {
+            while (input.hasNext()) {
+                Tuple tup = input.next();
+                if (aggregator.mergeTupleIntoGroup(tup, maxGroups)) {
+                    continue;
+                }
+                int p = partition(tup.getField(this.groupField), level);
+                if (partitions[p] == null) {
+                    partitions[p] = new SpillFile(input.getTupleDesc());
+                    this.spills.add(new Spill(partitions[p], level + 1));
+                    this.numSpills++;
+                }
+                partitions[p].add(tup);
+            }
+        } catch (IOException e) {
+            throw new DbException("Cannot spill aggregate partition: " + e);
+        }
+        return aggregator.iterator();
+    }
+
+    private int maxGroups() {
+        long groupBytes = GROUP_BYTES + AGGREGATE_BYTES * this.aggregateFields.length;
+        if (this.groupField != Aggregator.NO_GROUPING) {
+            groupBytes += this.child.getTupleDesc().getFieldType(this.groupField).getLen();
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, this.memoryBudget / groupBytes));
+    }
+
+    // picks the partition of a group-by value by 4 bits of its hash, other
+    // bits at each level so that a partition splits at the next one
+    private static int partition(Field value, int level) {
+        int h = value.hashCode() * 0x9E3779B9;
+        return Integer.rotateLeft(h, 4 * level) >>> 28;
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * field is the field by which we are grouping, and the following fields
+     * are the results of computing the aggregates. If there is no group by
+     * field, then the result tuple should contain one field representing the
+     * result of each aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.aggOpIter.hasNext()) {
-            return this.aggOpIter.next();
+        while (!this.aggOpIter.hasNext()) {
+            Spill spill = this.spills.poll();
+            if (spill == null) {
+                return null;
+            }
+            this.aggOpIter.close();
+            try {
+                OpIterator input = spill.file.iterator();
+                input.open();
+                this.aggOpIter = aggregate(input, spill.level);
+                input.close();
+                spill.file.delete();
+            } catch (IOException e) {
+                throw new DbException("Cannot read aggregate partition: " + e);
+            }
+            this.aggOpIter.open();
         }
-        return null;
+        return this.aggOpIter.next();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.aggOpIter.rewind();
+        if (this.numSpills == 0) {
+            this.aggOpIter.rewind();
+            return;
+        }
+        // the groups that were spilled are gone once returned
+        close();
+        open();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field for each aggregate column. If there is a group
+     * by field, the first field will be the group by field, and the following
+     * will be the aggregate value columns.
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
@@ -145,18 +314,32 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc td = this.child.getTupleDesc();
-        if (this.groupField == Aggregator.NO_GROUPING) {
-            return new TupleDesc(new Type[] { td.getFieldType(this.aggregateField) },
-                    new String[] { td.getFieldName(aggregateField) });
+        int first = this.groupField == Aggregator.NO_GROUPING ? 0 : 1;
+        Type[] types = new Type[first + this.aggregateFields.length];
+        String[] names = new String[types.length];
+        if (first == 1) {
+            types[0] = td.getFieldType(this.groupField);
+            names[0] = td.getFieldName(this.groupField);
+        }
+        for (int i = 0; i < this.aggregateFields.length; i++) {
+            types[first + i] = td.getFieldType(this.aggregateFields[i]);
+            names[first + i] = td.getFieldName(this.aggregateFields[i]);
         }
-        return new TupleDesc(new Type[] { td.getFieldType(this.groupField), td.getFieldType(this.aggregateField) },
-                new String[] { td.getFieldName(groupField), td.getFieldName(aggregateField) });
+        return new TupleDesc(types, names);
     }
 
     public void close() {
         // some code goes here
         super.close();
         this.aggOpIter.close();
+        for (Spill spill : this.spills) {
+            try {
+                spill.file.delete();
+            } catch (IOException e) {
+                // it is deleted on exit
+            }
+        }
+        this.spills.clear();
     }
 
     @Override
@@ -18,6 +18,16 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge a new tuple into the aggregate if its group value has been
+     * encountered already, or if fewer than maxGroups group values have
+     * been; otherwise leaves the aggregate unchanged.
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @return whether tup was merged
+     */
+    public boolean mergeTupleIntoGroup(Tuple tup, int maxGroups);
+
     /**
      * Create a OpIterator over group aggregate results.
      *
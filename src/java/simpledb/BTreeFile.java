@@ -21,6 +21,7 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
     private final File f;
+    private final DbFileChannel channel;
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
@@ -35,6 +36,7 @@ public class BTreeFile implements DbFile {
      */
     public BTreeFile(File f, int key, TupleDesc td) {
         this.f = f;
+        this.channel = new DbFileChannel(f);
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
@@ -78,37 +80,17 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to read " + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
+                channel.read(pageBuf, 0);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
                 return p;
             } else {
                 byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize())
-                        != BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to read " + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                channel.read(pageBuf, pageOffset(id.getPageNumber()));
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
                     BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -121,16 +103,10 @@ public class BTreeFile implements DbFile {
                     return p;
                 }
             }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Read past end of table", e);
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
@@ -144,23 +120,32 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(data, 0);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(data, pageOffset(page.getId().getPageNumber()));
         }
     }
 
     /**
-     * Returns the number of pages in this BTreeFile.
+     * Returns the offset of page pgNo in the file. Page numbers start at 1,
+     * after the root pointer page.
+     */
+    private static long pageOffset(int pgNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns the number of pages in this BTreeFile. The count is maintained
+     * as pages are appended, so this does not touch the disk.
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try {
+            return (int) ((channel.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -488,6 +473,10 @@ public class BTreeFile implements DbFile {
             return dirtypages.get(pid);
         } else {
             Page p = Database.getBufferPool().getPage(tid, pid, perm);
+            // the page is only used while the lock is held, and pages that
+            // will be written are kept in dirtypages until they are marked
+            // dirty, so it does not need to stay pinned
+            Database.getBufferPool().unpinPage(tid, pid);
             if (perm == Permissions.READ_WRITE) {
                 dirtypages.put(pid, p);
             }
@@ -1029,14 +1018,10 @@ public class BTreeFile implements DbFile {
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
             throws DbException, IOException, TransactionAbortedException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (channel.size() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.write(BTreeRootPtrPage.createEmptyPageData(), 0);
+                channel.write(BTreeLeafPage.createEmptyPageData(), pageOffset(1));
             }
         }
 
@@ -1090,10 +1075,7 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.append(BTreeInternalPage.createEmptyPageData());
                 emptyPageNo = numPages();
             }
         }
@@ -1123,10 +1105,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1278,6 +1257,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool()
                 .getPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
+        Database.getBufferPool().unpinPage(tid, rootPtr.getId());
         curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
         it = curp.iterator();
     }
@@ -1295,6 +1275,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
+            Database.getBufferPool().unpinPage(tid, curp.getId());
             if (nextp == null) {
                 curp = null;
             } else {
@@ -1323,6 +1304,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+        }
         it = null;
         curp = null;
     }
@@ -1362,6 +1346,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool()
                 .getPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
+        Database.getBufferPool().unpinPage(tid, rootPtr.getId());
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
             curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
         } else {
@@ -1397,8 +1382,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             }
 
             BTreePageId nextp = curp.getRightSiblingId();
+            Database.getBufferPool().unpinPage(tid, curp.getId());
             // if there are no more pages to the right, end the iteration
             if (nextp == null) {
+                curp = null;
+                it = null;
                 return null;
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
@@ -1422,6 +1410,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+        }
         it = null;
+        curp = null;
     }
 }
@@ -15,6 +15,10 @@ public class BTreeHeaderPage implements Page {
     final byte header[];
     final int numSlots;
     private final Byte oldDataLock = new Byte((byte) 0);
+    /**
+     * The before image, or null while the page is unchanged since the last
+     * setBeforeImage.
+     */
     byte[] oldData;
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
@@ -27,6 +31,9 @@ public class BTreeHeaderPage implements Page {
      * header pages, followed by a set of bytes indicating which pages in the file
      * are used or available
      *
+     * @param id   - the id of this page
+     * @param data - the raw data of this page; it is kept as the before image,
+     *             so the caller must not change it afterwards
      * @see BufferPool#getPageSize()
      */
     public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
@@ -56,7 +63,7 @@ public class BTreeHeaderPage implements Page {
 
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     /**
@@ -93,6 +100,7 @@ public class BTreeHeaderPage implements Page {
      * Initially mark all slots in the header used.
      */
     public void init() {
+        prepareWrite();
         for (int i = 0; i < header.length; i++)
             header[i] = (byte) 0xFF;
     }
@@ -105,7 +113,7 @@ public class BTreeHeaderPage implements Page {
         try {
             byte[] oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new BTreeHeaderPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -116,9 +124,25 @@ public class BTreeHeaderPage implements Page {
         return null;
     }
 
+    /**
+     * Makes the current contents the before image; they are serialized by
+     * {@link #prepareWrite} once the page is modified again.
+     */
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
+        }
+    }
+
+    /**
+     * Captures the current contents as the before image if there is none
+     * yet. Called before every modification.
+     */
+    private void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
         }
     }
 
@@ -197,6 +221,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setPrevPageId(BTreePageId id) throws DbException {
+        prepareWrite();
         if (id == null) {
             prevPage = 0;
         } else {
@@ -229,6 +254,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setNextPageId(BTreePageId id) throws DbException {
+        prepareWrite();
         if (id == null) {
             nextPage = 0;
         } else {
@@ -279,6 +305,7 @@ public class BTreeHeaderPage implements Page {
         int headerbyte = (i - headerbit) / 8;
 
         Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+        prepareWrite();
         if (value)
             header[headerbyte] |= 1 << headerbit;
         else
@@ -38,7 +38,8 @@ public class BTreeInternalPage extends BTreePage {
      * <p>
      *
      * @param id   - the id of this page
-     * @param data - the raw data of this page
+     * @param data - the raw data of this page; it is kept as the before image,
+     *             so the caller must not change it afterwards
      * @param key  - the field which the index is keyed on
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
@@ -87,7 +88,7 @@ public class BTreeInternalPage extends BTreePage {
         }
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
@@ -143,11 +144,7 @@ public class BTreeInternalPage extends BTreePage {
      */
     public BTreeInternalPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeInternalPage(pid, oldDataRef, keyField);
+            return new BTreeInternalPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -156,12 +153,6 @@ public class BTreeInternalPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read keys from the source file.
      */
@@ -356,6 +347,7 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("tried to delete entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null entry.");
+        prepareWrite();
         if (deleteRightChild) {
             markSlotUsed(rid.getTupleNumber(), false);
         } else {
@@ -416,6 +408,7 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("tried to update entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to update null entry.");
+        prepareWrite();
 
         for (int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
             if (isSlotUsed(i)) {
@@ -455,6 +448,7 @@ public class BTreeInternalPage extends BTreePage {
         if (e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
             throw new DbException("table id mismatch in insertEntry");
 
+        prepareWrite();
         if (childCategory == 0) {
             if (e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
                 throw new DbException("child page category mismatch in insertEntry");
@@ -33,7 +33,8 @@ public class BTreeLeafPage extends BTreePage {
      * <p>
      *
      * @param id   - the id of this page
-     * @param data - the raw data of this page
+     * @param data - the raw data of this page; it is kept as the before image,
+     *             so the caller must not change it afterwards
      * @param key  - the field which the index is keyed on
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
@@ -81,7 +82,7 @@ public class BTreeLeafPage extends BTreePage {
         }
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
@@ -134,11 +135,7 @@ public class BTreeLeafPage extends BTreePage {
      */
     public BTreeLeafPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeLeafPage(pid, oldDataRef, keyField);
+            return new BTreeLeafPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -147,12 +144,6 @@ public class BTreeLeafPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read tuples from the source file.
      */
@@ -297,6 +288,7 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
+        prepareWrite();
         markSlotUsed(rid.getTupleNumber(), false);
         t.setRecordId(null);
     }
@@ -338,6 +330,7 @@ public class BTreeLeafPage extends BTreePage {
             }
         }
 
+        prepareWrite();
         // shift records back or forward to fill empty slot and make room for new record
         // while keeping records in sorted order
         int goodSlot = -1;
@@ -395,6 +388,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setLeftSiblingId(BTreePageId id) throws DbException {
+        prepareWrite();
         if (id == null) {
             leftSibling = 0;
         } else {
@@ -427,6 +421,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setRightSiblingId(BTreePageId id) throws DbException {
+        prepareWrite();
         if (id == null) {
             rightSibling = 0;
         } else {
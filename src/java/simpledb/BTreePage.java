@@ -5,6 +5,10 @@ import java.io.*;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * B+ tree pages, like the header and root pointer pages, keep the data they
+ * are created from as their before image without copying it, so the caller
+ * must not change that array once it has created a page from it.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -18,6 +22,11 @@ public abstract class BTreePage implements Page {
     protected volatile boolean dirty = false;
     protected volatile TransactionId dirtier = null;
     protected int parent; // parent is always internal node or 0 for root node
+    /**
+     * The before image, or null while the page is unchanged since the last
+     * setBeforeImage, in which case the current contents are the before
+     * image.
+     */
     protected byte[] oldData;
 
     /**
@@ -99,6 +108,7 @@ public abstract class BTreePage implements Page {
         if (id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
             throw new DbException("parent must be an internal node or root pointer");
         }
+        prepareWrite();
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
             parent = 0;
         } else {
@@ -106,6 +116,39 @@ public abstract class BTreePage implements Page {
         }
     }
 
+    /**
+     * Makes the current contents the before image. The page is only
+     * serialized when it is first modified afterwards, see
+     * {@link #prepareWrite}, so pages that are only read pay nothing.
+     */
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * @return the bytes of the before image of this page
+     */
+    protected byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData != null ? oldData : getPageData();
+        }
+    }
+
+    /**
+     * Must be called by every method that modifies the page, before it does
+     * so: captures the current contents as the before image if there is
+     * none yet.
+     */
+    protected void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
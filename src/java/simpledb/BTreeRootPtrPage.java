@@ -32,6 +32,10 @@ public class BTreeRootPtrPage implements Page {
      * of the root node, followed by a byte to encode the category of the root page
      * (either leaf or internal), followed by an integer for the page number
      * of the first header page
+     *
+     * @param id   - the id of this page
+     * @param data - the raw data of this page; it is kept as the before image,
+     *             so the caller must not change it afterwards
      */
     public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
         this.pid = id;
@@ -44,7 +48,7 @@ public class BTreeRootPtrPage implements Page {
         // read in the header pointer
         header = dis.readInt();
 
-        setBeforeImage();
+        oldData = data;
     }
 
     /**
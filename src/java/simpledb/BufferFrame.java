@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BufferFrame describes one frame of the BufferPool: the page cached in it
+ * and the bookkeeping the pool needs to decide whether the frame may be
+ * reused.
+ * <p>
+ * A frame is pinned while an operator is still using its page. Every
+ * {@link BufferPool#getPage} pins the frame on behalf of the requesting
+ * transaction; {@link BufferPool#unpinPage} and
+ * {@link BufferPool#releasePage} unpin it, and all pins a transaction still
+ * holds are dropped when it completes. Pinned frames are never evicted.
+ * <p>
+ * Frames are guarded by the monitor of the BufferPool partition that owns
+ * them.
+ *
+ * @see BufferPool
+ */
+public class BufferFrame {
+
+    private Page page;
+    private int pinCount;
+    private final Map<TransactionId, Integer> pins;
+    private boolean dirty;
+    private long usageCount;
+    private long lastLsn;
+
+    public BufferFrame(Page page) {
+        this.page = page;
+        this.pinCount = 0;
+        this.pins = new HashMap<>();
+        this.dirty = page.isDirty() != null;
+        this.usageCount = 0;
+        this.lastLsn = -1;
+    }
+
+    /**
+     * @return the page cached in this frame
+     */
+    public Page getPage() {
+        return this.page;
+    }
+
+    /**
+     * Replace the cached version of the page, e.g. with a freshly dirtied
+     * copy. Pins and statistics carry over.
+     */
+    public void setPage(Page page) {
+        this.page = page;
+        this.dirty = this.dirty || page.isDirty() != null;
+    }
+
+    /**
+     * Pin this frame on behalf of tid and count the access.
+     */
+    public void pin(TransactionId tid) {
+        this.pins.merge(tid, 1, Integer::sum);
+        this.pinCount++;
+        this.usageCount++;
+    }
+
+    /**
+     * Drop one of the pins tid holds on this frame, if any.
+     */
+    public void unpin(TransactionId tid) {
+        Integer count = this.pins.get(tid);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            this.pins.remove(tid);
+        } else {
+            this.pins.put(tid, count - 1);
+        }
+        this.pinCount--;
+    }
+
+    /**
+     * Drop every pin tid holds on this frame.
+     */
+    public void unpinAll(TransactionId tid) {
+        Integer count = this.pins.remove(tid);
+        if (count != null) {
+            this.pinCount -= count;
+        }
+    }
+
+    public int getPinCount() {
+        return this.pinCount;
+    }
+
+    public boolean isPinned() {
+        return this.pinCount > 0;
+    }
+
+    /**
+     * @return true if the page has changes that are not on disk yet. Access
+     * methods may dirty pages directly, so the page's own flag counts too.
+     */
+    public boolean isDirty() {
+        return this.dirty || this.page.isDirty() != null;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * @return how many times the page in this frame has been requested
+     */
+    public long getUsageCount() {
+        return this.usageCount;
+    }
+
+    /**
+     * @return the LSN of the last log record written for this page, or -1
+     * if the page has not been logged since it was read
+     */
+    public long getLastLsn() {
+        return this.lastLsn;
+    }
+
+    public void setLastLsn(long lsn) {
+        this.lastLsn = lsn;
+    }
+}
@@ -1,10 +1,15 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +19,18 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages are hash-partitioned by PageId. Each partition has its own
+ * page table, replacement state and monitor, so hits, misses and flushes on
+ * different partitions never wait for each other. Disk reads and writes
+ * happen outside of any partition monitor. The capacity is global: a miss
+ * evicts from its own partition first and steals a frame from another
+ * partition only when its own has nothing evictable.
+ * <p>
+ * Sequential scans may ask the pool to read the pages they will need next
+ * in the background, see {@link #prefetchPages}. A page that is being read,
+ * by a prefetch or by a miss in getPage, is claimed in its partition so
+ * every page is read from disk at most once; other requests for it wait.
  *
  * @Threadsafe, all fields are final
  */
@@ -29,11 +46,219 @@ public class BufferPool {
      */
     private static final int DEFAULT_PAGE_SIZE = 4096;
     private static int pageSize = DEFAULT_PAGE_SIZE;
+    /**
+     * Replacement policy used when none is passed to the constructor.
+     */
+    public static final ReplacementPolicy.Kind DEFAULT_REPLACEMENT_POLICY = ReplacementPolicy.Kind.CLOCK;
+    /**
+     * Smallest number of pages per partition when the partition count is
+     * chosen automatically; small pools end up with a single partition.
+     */
+    private static final int MIN_PAGES_PER_PARTITION = 16;
+    /**
+     * Number of pages sequential scans read ahead by default.
+     */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+    /**
+     * How the lock manager handles deadlocks unless told otherwise.
+     */
+    public static final LockManager.DeadlockPolicy DEFAULT_DEADLOCK_POLICY = LockManager.DeadlockPolicy.DETECT;
+    /**
+     * Number of page locks a transaction may hold on one table before they
+     * are escalated to a table lock, unless told otherwise.
+     */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 512;
 
-    private Map<PageId, Page> pageIdToPage;
-    private List<PageId> pageIds;
-    private int numPages;
-    private LockManager lockMgr;
+    private final Partition[] partitions;
+    private final AtomicInteger numResident;
+    private final int numPages;
+    private final LockManager lockMgr;
+    private final VersionStore versions;
+    private volatile int readAheadPages;
+
+    /**
+     * One hash partition of the pool. All fields, including the frames, are
+     * guarded by the partition's monitor.
+     */
+    private class Partition {
+        final Map<PageId, BufferFrame> frames;
+        final Set<PageId> loading;
+        final ReplacementPolicy policy;
+
+        Partition(ReplacementPolicy policy) {
+            this.frames = new HashMap<>();
+            this.loading = new HashSet<>();
+            this.policy = policy;
+        }
+
+        /**
+         * @return the cached page pinned for tid, or null on a miss
+         */
+        synchronized Page lookup(TransactionId tid, PageId pid) {
+            BufferFrame frame = this.frames.get(pid);
+            if (frame == null) {
+                return null;
+            }
+            frame.pin(tid);
+            this.policy.pageAccessed(pid);
+            return frame.getPage();
+        }
+
+        /**
+         * Like lookup, but on a miss claims pid for the caller, who must then
+         * read the page and install or abandon it. Waits while another
+         * thread is reading the page.
+         *
+         * @return the cached page pinned for tid, or null if the caller now
+         * owns the claim
+         */
+        synchronized Page lookupOrClaim(TransactionId tid, PageId pid) {
+            while (this.loading.contains(pid)) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            Page page = this.lookup(tid, pid);
+            if (page == null) {
+                this.loading.add(pid);
+            }
+            return page;
+        }
+
+        /**
+         * Claims pid for a prefetch.
+         *
+         * @return false if the page is resident or already being read
+         */
+        synchronized boolean claim(PageId pid) {
+            if (this.frames.containsKey(pid) || this.loading.contains(pid)) {
+                return false;
+            }
+            this.loading.add(pid);
+            return true;
+        }
+
+        /**
+         * Drops the claim on pid without installing it and wakes up waiters.
+         */
+        synchronized void abandon(PageId pid) {
+            this.loading.remove(pid);
+            this.notifyAll();
+        }
+
+        synchronized Page peek(PageId pid) {
+            BufferFrame frame = this.frames.get(pid);
+            return frame == null ? null : frame.getPage();
+        }
+
+        synchronized List<PageId> pageIds() {
+            return new ArrayList<>(this.frames.keySet());
+        }
+
+        /**
+         * Installs page into a frame that the caller has already reserved,
+         * pinned for tid unless tid is null, and drops the claim on it.
+         *
+         * @return the page that ends up cached, which is an already resident
+         * version if another thread installed one first
+         */
+        synchronized Page install(TransactionId tid, Page page) {
+            PageId pid = page.getId();
+            BufferFrame frame = this.frames.get(pid);
+            if (frame != null) {
+                numResident.decrementAndGet();
+                this.policy.pageAccessed(pid);
+            } else {
+                frame = new BufferFrame(page);
+                this.frames.put(pid, frame);
+                this.policy.pageAdded(pid);
+            }
+            if (tid != null) {
+                frame.pin(tid);
+            }
+            this.abandon(pid);
+            return frame.getPage();
+        }
+
+        /**
+         * Replaces the cached version of a resident page with a dirty one.
+         *
+         * @return false if the page is not resident
+         */
+        synchronized boolean replace(Page page) {
+            PageId pid = page.getId();
+            BufferFrame frame = this.frames.get(pid);
+            if (frame == null) {
+                return false;
+            }
+            frame.setPage(page);
+            frame.setDirty(true);
+            this.policy.pageAccessed(pid);
+            return true;
+        }
+
+        /**
+         * Records that page has been written out as of log record lsn.
+         */
+        synchronized void markClean(Page page, long lsn) {
+            BufferFrame frame = this.frames.get(page.getId());
+            if (frame != null && frame.getPage() == page) {
+                frame.setDirty(false);
+                frame.setLastLsn(lsn);
+            }
+        }
+
+        synchronized void unpin(TransactionId tid, PageId pid, boolean all) {
+            BufferFrame frame = this.frames.get(pid);
+            if (frame != null) {
+                if (all) {
+                    frame.unpinAll(tid);
+                } else {
+                    frame.unpin(tid);
+                }
+            }
+        }
+
+        synchronized int numPinned() {
+            int pinned = 0;
+            for (BufferFrame frame : this.frames.values()) {
+                if (frame.isPinned()) {
+                    pinned++;
+                }
+            }
+            return pinned;
+        }
+
+        synchronized boolean remove(PageId pid) {
+            if (this.frames.remove(pid) == null) {
+                return false;
+            }
+            this.policy.pageRemoved(pid);
+            numResident.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Evicts one clean, unpinned page from this partition.
+         *
+         * @return false if every page of this partition is dirty or pinned
+         */
+        synchronized boolean evict() {
+            // NO STEAL: only clean pages may leave the pool
+            PageId victim = this.policy.chooseVictim(pid -> {
+                BufferFrame frame = this.frames.get(pid);
+                return !frame.isPinned() && !frame.isDirty();
+            });
+            if (victim == null || this.frames.remove(victim) == null) {
+                return false;
+            }
+            this.policy.pageEvicted(victim);
+            numResident.decrementAndGet();
+            return true;
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -41,11 +266,126 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_REPLACEMENT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given replacement policy.
+     *
+     * @param numPages   maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind) {
+        this(numPages, policyKind, defaultPartitions(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions independently locked partitions.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param policyKind    the replacement policy used by every partition
+     * @param numPartitions the number of partitions, at least one
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind, int numPartitions) {
         // some code goes here
-        this.pageIdToPage = new ConcurrentHashMap<>(numPages);
-        this.pageIds = new CopyOnWriteArrayList<>();
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("A buffer pool needs at least one partition");
+        }
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            this.partitions[i] = new Partition(policyKind.create(Math.max(1, numPages / numPartitions)));
+        }
+        this.numResident = new AtomicInteger(0);
         this.numPages = numPages;
-        this.lockMgr = new LockManager();
+        this.lockMgr = new LockManager(DEFAULT_DEADLOCK_POLICY, DEFAULT_LOCK_ESCALATION_THRESHOLD);
+        this.versions = new VersionStore();
+        this.readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+    }
+
+    private static int defaultPartitions(int numPages) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, numPages / MIN_PAGES_PER_PARTITION));
+    }
+
+    /**
+     * @return the number of partitions this pool is split into
+     */
+    public int getNumPartitions() {
+        return this.partitions.length;
+    }
+
+    /**
+     * @return the number of frames that currently hold a page
+     */
+    public int getNumResidentPages() {
+        return this.numResident.get();
+    }
+
+    /**
+     * @return the number of frames that are pinned by at least one
+     * transaction and therefore cannot be evicted
+     */
+    public int getNumPinnedPages() {
+        int pinned = 0;
+        for (Partition partition : this.partitions) {
+            pinned += partition.numPinned();
+        }
+        return pinned;
+    }
+
+    /**
+     * @return how the lock manager handles deadlocks
+     */
+    public LockManager.DeadlockPolicy getDeadlockPolicy() {
+        return this.lockMgr.getPolicy();
+    }
+
+    /**
+     * Sets how the lock manager handles deadlocks. The policy should be set
+     * right after the pool is created, before transactions start.
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        this.lockMgr.setPolicy(policy);
+    }
+
+    /**
+     * @return how many page locks a transaction may hold on one table before
+     * they are escalated to a table lock
+     */
+    public int getLockEscalationThreshold() {
+        return this.lockMgr.getEscalationThreshold();
+    }
+
+    /**
+     * Sets how many page locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        this.lockMgr.setEscalationThreshold(threshold);
+    }
+
+    /**
+     * @return how many pages sequential scans should read ahead. This is
+     * capped at a quarter of the pool so read-ahead cannot flush it.
+     */
+    public int getReadAheadPages() {
+        return Math.min(this.readAheadPages, this.numPages / 4);
+    }
+
+    /**
+     * Sets how many pages sequential scans read ahead; 0 disables read-ahead.
+     */
+    public void setReadAheadPages(int readAheadPages) {
+        if (readAheadPages < 0) {
+            throw new IllegalArgumentException("Negative read-ahead: " + readAheadPages);
+        }
+        this.readAheadPages = readAheadPages;
+    }
+
+    private Partition partitionOf(PageId pid) {
+        return this.partitions[Math.floorMod(pid.hashCode(), this.partitions.length)];
     }
 
     public static int getPageSize() {
@@ -72,25 +412,125 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The returned page stays pinned for tid, and therefore resident, until
+     * tid unpins it with {@link #unpinPage}, releases it, or completes.
+     * <p>
+     * A snapshot transaction (see {@link #beginSnapshot}) takes no lock and
+     * no pin; it gets a private copy of the page as of its snapshot.
      *
      * @param tid  the ID of the transaction requesting the page
      * @param pid  the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if a snapshot transaction asks for READ_WRITE
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
+        if (this.versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("Snapshot transaction " + tid.getId() + " is read-only");
+            }
+            Page page = this.fetchPage(tid, pid);
+            // the before image is the committed version and is never
+            // changed in place, so it must be taken before the versions
+            // are looked at
+            Page committed = page.getBeforeImage();
+            this.partitionOf(pid).unpin(tid, pid, false);
+            return this.versions.read(tid, committed);
+        }
         this.lockMgr.aquireLock(tid, pid, perm);
-        if (!this.pageIdToPage.containsKey(pid)) {
-            if (this.pageIdToPage.size() >= this.numPages) {
-                this.evictPage();
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Looks up pid in the pool, reading it if needed, and pins it for tid.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid) throws DbException {
+        Partition partition = this.partitionOf(pid);
+        Page page = partition.lookupOrClaim(tid, pid);
+        if (page != null) {
+            return page;
+        }
+        try {
+            this.evictPage(partition);
+        } catch (DbException e) {
+            partition.abandon(pid);
+            throw e;
+        }
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            this.numResident.decrementAndGet();
+            partition.abandon(pid);
+            throw e;
+        }
+        return partition.install(tid, page);
+    }
+
+    /**
+     * Makes tid a read-only transaction that reads a snapshot of the
+     * database: its reads see exactly the transactions that committed
+     * before this call. It takes no locks, so it neither waits for writers
+     * nor makes them wait, and it cannot deadlock. While snapshots are
+     * active, the committed versions of pages that writers change are kept
+     * in memory until no snapshot needs them; the snapshot ends with
+     * {@link #transactionComplete}.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return the number of page versions currently kept for snapshots
+     */
+    public int getNumPageVersions() {
+        return this.versions.numVersions();
+    }
+
+    /**
+     * Reads the given pages of one file into the pool, without locking or
+     * pinning them, so that a scan finds them resident later. This is safe
+     * without locks because the pool never evicts dirty pages: a page that
+     * is not resident is the committed version on disk.
+     * <p>
+     * Pages that are already resident or being read are skipped. Prefetching
+     * never fails; it stops early once no frame can be freed. The pages are
+     * passed to {@link DbFile#prepareRead} first so the file can fetch them
+     * with as few I/Os as possible.
+     *
+     * @param pids the pages to read, all from the same file
+     */
+    public void prefetchPages(List<PageId> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pids.get(0).getTableId());
+        List<PageId> claimed = new ArrayList<>();
+        for (PageId pid : pids) {
+            Partition partition = this.partitionOf(pid);
+            if (!partition.claim(pid)) {
+                continue;
+            }
+            if (!this.reserveFrame(partition)) {
+                partition.abandon(pid);
+                break;
+            }
+            claimed.add(pid);
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+        file.prepareRead(claimed);
+        for (PageId pid : claimed) {
+            Partition partition = this.partitionOf(pid);
+            try {
+                partition.install(null, file.readPage(pid));
+            } catch (RuntimeException e) {
+                this.numResident.decrementAndGet();
+                partition.abandon(pid);
             }
-            this.pageIdToPage.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-        } else {
-            this.pageIds.remove(pid);
         }
-        this.pageIds.add(pid);
-        return this.pageIdToPage.get(pid);
     }
 
     /**
@@ -105,9 +545,22 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        this.partitionOf(pid).unpin(tid, pid, true);
         this.lockMgr.releaseLock(tid, pid);
     }
 
+    /**
+     * Drops one pin that tid holds on the page, telling the pool that the
+     * caller is done reading it. Unlike {@link #releasePage} the lock on the
+     * page is kept.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        this.partitionOf(pid).unpin(tid, pid, false);
+    }
+
     /**
      * Release all locks associated with a given transaction.
      *
@@ -138,16 +591,33 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : this.lockMgr.getLockedPageIdSet(tid)) {
-            Page page = this.pageIdToPage.get(pid);
-            if (page != null) {
-                if (commit) {
+        if (this.versions.isSnapshot(tid)) {
+            this.versions.endSnapshot(tid);
+            return;
+        }
+        if (commit) {
+            this.versions.beginCommit();
+        }
+        try {
+            for (PageId pid : this.pagesOf(tid)) {
+                Partition partition = this.partitionOf(pid);
+                partition.unpin(tid, pid, true);
+                Page page = partition.peek(pid);
+                if (page != null) {
+                    if (commit) {
+                        this.flushPage(pid);
+                        page.setBeforeImage();
+                    } else {
+                        this.discardPage(pid);
+                    }
                     this.flushPage(pid);
-                    page.setBeforeImage();
-                } else {
-                    this.discardPage(pid);
                 }
-                this.flushPage(pid);
+            }
+        } finally {
+            if (commit) {
+                this.versions.endCommit(tid);
+            } else {
+                this.versions.abort(tid);
             }
         }
         this.lockMgr.releaseLock(tid);
@@ -174,11 +644,7 @@ public class BufferPool {
         DbFile hf = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = hf.insertTuple(tid, t);
         for (Page page : pages) {
-            page.markDirty(true, tid);
-            if (!this.pageIdToPage.containsKey(page.getId())) {
-                this.getPage(tid, page.getId(), Permissions.READ_WRITE);
-            }
-            this.pageIdToPage.put(page.getId(), page);
+            this.cacheDirtyPage(tid, page);
         }
     }
 
@@ -200,12 +666,23 @@ public class BufferPool {
         DbFile hf = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         List<Page> pages = hf.deleteTuple(tid, t);
         for (Page page : pages) {
-            page.markDirty(true, tid);
-            PageId pid = page.getId();
-            if (!this.pageIdToPage.containsKey(pid)) {
-                this.getPage(tid, pid, Permissions.READ_WRITE);
-            }
-            this.pageIdToPage.put(pid, page);
+            this.cacheDirtyPage(tid, page);
+        }
+    }
+
+    /**
+     * Marks page as dirtied by tid and makes it the cached version of its
+     * page, replacing whatever version the pool held before.
+     */
+    private void cacheDirtyPage(TransactionId tid, Page page)
+            throws DbException, TransactionAbortedException {
+        page.markDirty(true, tid);
+        PageId pid = page.getId();
+        Partition partition = this.partitionOf(pid);
+        // getPage takes the lock and makes the page resident; retry in the
+        // unlikely case that it is evicted again before we replace it
+        while (!partition.replace(page)) {
+            this.getPage(tid, pid, Permissions.READ_WRITE);
         }
     }
 
@@ -214,14 +691,14 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Page page : this.pageIdToPage.values()) {
-            if (page.isDirty() != null) {
-                this.flushPage(page.getId());
-            }
+        List<PageId> pids = new ArrayList<>();
+        for (Partition partition : this.partitions) {
+            pids.addAll(partition.pageIds());
         }
+        this.flushPages(pids);
     }
 
     /**
@@ -232,13 +709,12 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (this.pageIdToPage.containsKey(pid)) {
-            this.pageIdToPage.remove(pid);
-            this.pageIds.remove(pid);
-        }
+        // callers may have written the page without logging it
+        Database.getLogFile().forgetPage(pid);
+        this.partitionOf(pid).remove(pid);
     }
 
     /**
@@ -246,61 +722,123 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (!this.pageIdToPage.containsKey(pid)) {
-            Debug.log(String.format("PID: %s doesn't exist in buffer", pid));
+        this.flushPages(Collections.singletonList(pid));
+    }
+
+    /**
+     * Flushes the given pages to disk. The update records of all of them are
+     * logged first and forced together, so that flushing n pages costs one
+     * force of the log rather than n.
+     */
+    private void flushPages(Collection<PageId> pids) throws IOException {
+        List<Page> logged = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        for (PageId pid : pids) {
+            Page page = this.partitionOf(pid).peek(pid);
+            if (page == null) {
+                Debug.log(String.format("PID: %s doesn't exist in buffer", pid));
+                continue;
+            }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                // once the page is on disk, snapshots may only read the
+                // committed version from the version store
+                this.versions.retain(dirtier, page.getBeforeImage());
+                lsns.add(Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page));
+                logged.add(page);
+            }
+        }
+        if (logged.isEmpty()) {
             return;
         }
-        Page page = this.pageIdToPage.get(pid);
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-            dbFile.writePage(page);
+        Database.getLogFile().force();
+        for (int i = 0; i < logged.size(); i++) {
+            Page page = logged.get(i);
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            Database.getLogFile().pageWritten(page.getId());
             page.markDirty(false, null);
+            this.partitionOf(page.getId()).markClean(page, lsns.get(i));
         }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : this.lockMgr.getLockedPageIdSet(tid)) {
-            Page page = this.pageIdToPage.get(pid);
-            if (page != null && page.isDirty() != null) {
-                this.flushPage(pid);
+        this.flushPages(this.pagesOf(tid));
+    }
+
+    /**
+     * @return the pages tid may have used: the pages it holds locks on, and
+     * the resident pages of the tables it holds a table lock on, since those
+     * pages are used without page locks
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pids = this.lockMgr.getLockedPageIdSet(tid);
+        Set<Integer> tableIds = this.lockMgr.getLockedTableIdSet(tid);
+        if (!tableIds.isEmpty()) {
+            for (Partition partition : this.partitions) {
+                for (PageId pid : partition.pageIds()) {
+                    if (tableIds.contains(pid.getTableId())) {
+                        pids.add(pid);
+                    }
+                }
             }
         }
+        return pids;
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Reserves a frame for a page that is about to be read into home,
+     * discarding pages from the buffer pool until the pool has room.
+     * Victims come from home first and from the other partitions only if
+     * home has nothing evictable. The caller owns the reserved frame and must
+     * either install a page into it or give it back by decrementing
+     * numResident.
+     *
+     * @throws DbException if every resident page is dirty or pinned
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Partition home) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (this.pageIds.size() <= 0) {
-            throw new DbException("Unable to evict a page");
-        }
-        PageId evictedPageId = null;
-        for (PageId pid : this.pageIds) {
-            Page page = this.pageIdToPage.get(pid);
-            if (page.isDirty() == null) {
-                evictedPageId = pid;
-                break;
-            }
-        }
-        if (evictedPageId == null) {
+        if (!this.reserveFrame(home)) {
             throw new DbException("Failed to evict a page");
         }
-        this.pageIds.remove(evictedPageId);
-        this.pageIdToPage.remove(evictedPageId);
+    }
+
+    /**
+     * Reserves a frame like {@link #evictPage}.
+     *
+     * @return false if no frame could be freed
+     */
+    private boolean reserveFrame(Partition home) {
+        while (true) {
+            int resident = this.numResident.get();
+            if (resident < this.numPages) {
+                if (this.numResident.compareAndSet(resident, resident + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if (home.evict()) {
+                continue;
+            }
+            boolean evicted = false;
+            for (Partition partition : this.partitions) {
+                if (partition != home && partition.evict()) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (!evicted) {
+                return false;
+            }
+        }
     }
 
 }
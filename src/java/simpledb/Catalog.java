@@ -135,6 +135,21 @@ public class Catalog {
         return this.tableIdToName.get(id);
     }
 
+    /**
+     * Removes a table from the catalog
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        String name = this.tableIdToName.remove(tableid);
+        if (name != null) {
+            this.nameToTableId.remove(name, tableid);
+        }
+        this.tableIdToDbFile.remove(tableid);
+        this.tableIdToPkeyField.remove(tableid);
+    }
+
     /**
      * Delete all tables from the catalog
      */
@@ -148,6 +163,9 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form "name (field type [pk], ...) [storage]". The
+     * storage is empty for a plain HeapFile, "mapped" for a MappedHeapFile, or
+     * "slotted" for a SlottedHeapFile.
      *
      * @param catalogFile
      */
@@ -158,7 +176,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [storage]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -189,7 +207,20 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File tableFile = new File(baseFolder + "/" + name + ".dat");
+                HeapFile tabHf;
+                if (storage.isEmpty()) {
+                    tabHf = new HeapFile(tableFile, t);
+                } else if (storage.equals("mapped")) {
+                    tabHf = new MappedHeapFile(tableFile, t);
+                } else if (storage.equals("slotted")) {
+                    tabHf = new SlottedHeapFile(tableFile, t);
+                } else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
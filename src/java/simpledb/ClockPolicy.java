@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array
+ * of frames with one reference bit each. A hit only sets the bit, so hit
+ * bookkeeping is a single hash lookup. To find a victim the clock hand sweeps
+ * the frames, clearing set bits, and stops at the first page whose bit is
+ * clear and which the filter accepts.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final Map<PageId, Integer> pidToFrame;
+    private final List<PageId> frames;
+    private final List<Boolean> referenced;
+    private final Deque<Integer> freeFrames;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        this.pidToFrame = new HashMap<>(capacity);
+        this.frames = new ArrayList<>(capacity);
+        this.referenced = new ArrayList<>(capacity);
+        this.freeFrames = new ArrayDeque<>();
+        this.hand = 0;
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (this.pidToFrame.containsKey(pid)) {
+            this.pageAccessed(pid);
+            return;
+        }
+        int frame;
+        if (!this.freeFrames.isEmpty()) {
+            frame = this.freeFrames.pop();
+            this.frames.set(frame, pid);
+            this.referenced.set(frame, true);
+        } else {
+            frame = this.frames.size();
+            this.frames.add(pid);
+            this.referenced.add(true);
+        }
+        this.pidToFrame.put(pid, frame);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        Integer frame = this.pidToFrame.get(pid);
+        if (frame != null) {
+            this.referenced.set(frame, true);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        Integer frame = this.pidToFrame.remove(pid);
+        if (frame != null) {
+            this.frames.set(frame, null);
+            this.referenced.set(frame, false);
+            this.freeFrames.push(frame);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(EvictionFilter filter) {
+        int n = this.frames.size();
+        // two full sweeps: the first one may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            if (this.hand >= n) {
+                this.hand = 0;
+            }
+            int frame = this.hand++;
+            PageId pid = this.frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            if (this.referenced.get(frame)) {
+                this.referenced.set(frame, false);
+            } else if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return this.pidToFrame.size();
+    }
+}
@@ -60,11 +60,31 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, BufferPool.DEFAULT_REPLACEMENT_POLICY);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind) {
+        return installBufferPool(new BufferPool(pages, policyKind));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * split into the given number of partitions and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind, int partitions) {
+        return installBufferPool(new BufferPool(pages, policyKind, partitions));
+    }
+
+    private static BufferPool installBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -87,4 +87,15 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Tells the file that {@link #readPage} is about to be called for each of
+     * the given pages, in this order. Files that can fetch a run of pages in
+     * a single I/O may do so here and serve the following readPage calls from
+     * memory. The default does nothing.
+     *
+     * @param pids the pages that will be read, all from this file
+     */
+    public default void prepareRead(List<PageId> pids) {
+    }
 }
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DbFileChannel is the long-lived handle a DbFile does its page I/O through.
+ * The underlying FileChannel is opened on first use and kept open, and all
+ * reads and writes are positional, so concurrent readers never contend on a
+ * shared file pointer.
+ * <p>
+ * The size of the file is read once when the channel is opened and then
+ * maintained on every write that extends the file, so callers can compute
+ * the number of pages without a system call. Writes that bypass this
+ * channel are not seen until it is reopened.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+    private final AtomicLong size;
+
+    public DbFileChannel(File file) {
+        this.file = file;
+        this.channel = null;
+        this.size = new AtomicLong();
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = this.channel;
+        if (ch == null) {
+            synchronized (this) {
+                if (this.channel == null) {
+                    FileChannel opened = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    this.size.set(opened.size());
+                    this.channel = opened;
+                }
+                ch = this.channel;
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() throws IOException {
+        this.channel();
+        return this.size.get();
+    }
+
+    /**
+     * Fills data with the bytes of the file starting at position.
+     *
+     * @throws EOFException if the file ends before data is full
+     */
+    public void read(byte[] data, long position) throws IOException {
+        FileChannel ch = this.channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) {
+                throw new EOFException(String.format("Read past end of %s at offset %d",
+                        this.file, position + buf.position()));
+            }
+        }
+    }
+
+    /**
+     * Writes all of data to the file starting at position, extending the
+     * file if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        FileChannel ch = this.channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+        this.size.accumulateAndGet(position + data.length, Math::max);
+    }
+
+    /**
+     * Appends data at the end of the file.
+     *
+     * @return the offset data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = this.size();
+        this.write(data, position);
+        return position;
+    }
+
+    /**
+     * Cuts the file down to size bytes.
+     */
+    public synchronized void truncate(long size) throws IOException {
+        this.channel().truncate(size);
+        this.size.set(Math.min(this.size.get(), size));
+    }
+
+    /**
+     * Maps the first size bytes of the file read-only. Writes through this
+     * channel are visible in the mapping.
+     */
+    public MappedByteBuffer map(long size) throws IOException {
+        return this.channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Forces all writes so far to the storage device.
+     */
+    public void force() throws IOException {
+        this.channel().force(false);
+    }
+
+    /**
+     * Closes the channel. It is reopened, and the size read again, on the
+     * next access.
+     */
+    public synchronized void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records, with one bit per page, which pages of a HeapFile
+ * are full, so inserts can go straight to a page with a free slot instead
+ * of trying every page.
+ * <p>
+ * The map is kept in a side file next to the data file ("table.dat.fsm").
+ * The bit of a page is written there whenever the page itself is written,
+ * so the side file matches the pages on disk. In memory the map also tracks
+ * uncommitted inserts and deletes. It is only a hint: inserts still check
+ * that a page has room, and a missing side file just means that every page
+ * is tried once.
+ * <p>
+ * The side file lives as long as the data file: it is deleted on exit if
+ * the data file is a temporary file, and whoever deletes a data file
+ * deletes its {@link #sideFile} as well.
+ *
+ * @Threadsafe
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile();
+
+    private final DbFileChannel channel;
+    /**
+     * Set bits mark full pages; null until the side file has been read.
+     */
+    private BitSet full;
+
+    /**
+     * @param dataFile the heap file this map describes
+     */
+    public FreeSpaceMap(File dataFile) {
+        File side = sideFile(dataFile);
+        if (TEMP_DIR.equals(dataFile.getAbsoluteFile().getParentFile())) {
+            side.deleteOnExit();
+        }
+        this.channel = new DbFileChannel(side);
+        this.full = null;
+    }
+
+    /**
+     * @return the side file of the map of dataFile
+     */
+    public static File sideFile(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Reads the side file on first use. Bits of pages beyond numPages are
+     * left over from an older version of the file and are dropped.
+     */
+    private void load(int numPages) throws IOException {
+        if (this.full != null) {
+            return;
+        }
+        if (numPages == 0) {
+            this.channel.truncate(0);
+            this.full = new BitSet();
+            return;
+        }
+        byte[] bits = new byte[(int) Math.min(this.channel.size(), (numPages + 7) / 8)];
+        this.channel.read(bits, 0);
+        this.full = BitSet.valueOf(bits);
+        this.full.clear(numPages, Math.max(numPages, this.full.length()));
+    }
+
+    /**
+     * @param from     the first page to consider
+     * @param numPages the number of pages in the heap file
+     * @return the first page at or after from that may have a free slot, or
+     * -1 if every page is full
+     */
+    public synchronized int nextFreePage(int from, int numPages) {
+        try {
+            this.load(numPages);
+        } catch (IOException e) {
+            // without the side file every page is a candidate
+            e.printStackTrace();
+            this.full = new BitSet();
+        }
+        int pgNo = this.full.nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /**
+     * Records in memory whether page pgNo has a free slot.
+     */
+    public synchronized void update(int pgNo, boolean hasRoom) {
+        if (this.full != null) {
+            this.full.set(pgNo, !hasRoom);
+        }
+    }
+
+    /**
+     * Records whether page pgNo has a free slot and writes the bit to the
+     * side file. Called when the page itself is written.
+     */
+    public synchronized void persist(int pgNo, boolean hasRoom, int numPages) throws IOException {
+        this.load(numPages);
+        this.full.set(pgNo, !hasRoom);
+        byte word = 0;
+        for (int i = 0; i < 8; i++) {
+            if (this.full.get(pgNo / 8 * 8 + i)) {
+                word |= 1 << i;
+            }
+        }
+        this.channel.write(new byte[]{word}, pgNo / 8);
+    }
+
+    /**
+     * Closes the side file; it is reopened on the next access.
+     */
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GroupIndex numbers the distinct group-by values an aggregator has seen,
+ * so that it can keep the running state of each group in arrays indexed by
+ * group number rather than keeping the tuples. Integer values are looked up
+ * in an open addressing hash table of ints, without boxing them into
+ * fields; other values in a HashMap.
+ * <p>
+ * Without grouping, every tuple belongs to group 0.
+ *
+ * @see IntegerAggregator
+ * @see StringAggregator
+ */
+public class GroupIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int groupByField;
+    private final boolean intKeys;
+    /** The group-by value of each group, by group number. */
+    private final List<Field> values = new ArrayList<Field>();
+
+    // the hash table of int values: the value in each slot, and its group
+    // number plus one, or 0 if the slot is empty
+    private int[] keys;
+    private int[] groups;
+    private int mask;
+
+    private final Map<Field, Integer> fieldGroups = new HashMap<Field, Integer>();
+
+    /**
+     * @param gbfield     the 0-based index of the group-by field in the tuple, or
+     *                    NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field, or null if there is no
+     *                    grouping
+     */
+    public GroupIndex(int gbfield, Type gbfieldtype) {
+        this.groupByField = gbfield;
+        this.intKeys = gbfield != Aggregator.NO_GROUPING && Type.INT_TYPE.equals(gbfieldtype);
+        this.keys = new int[16];
+        this.groups = new int[16];
+        this.mask = 15;
+    }
+
+    /**
+     * Returns the number of the group tup belongs to, numbering it if its
+     * group-by value has not been seen yet.
+     */
+    public int groupOf(Tuple tup) {
+        return groupOf(tup, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of the group tup belongs to, numbering it if its
+     * group-by value has not been seen yet and there are fewer than
+     * maxGroups groups.
+     *
+     * @return the group number, or -1 if tup belongs to a new group and
+     *         there are maxGroups groups already
+     */
+    public int groupOf(Tuple tup, int maxGroups) {
+        if (this.groupByField == Aggregator.NO_GROUPING) {
+            if (this.values.isEmpty()) {
+                this.values.add(null);
+            }
+            return 0;
+        }
+        Field value = tup.getField(this.groupByField);
+        if (!this.intKeys) {
+            Integer group = this.fieldGroups.get(value);
+            if (group == null) {
+                if (this.values.size() >= maxGroups) {
+                    return -1;
+                }
+                group = this.values.size();
+                this.fieldGroups.put(value, group);
+                this.values.add(value);
+            }
+            return group;
+        }
+
+        int key = ((IntField) value).getValue();
+        int slot = slot(key);
+        while (this.groups[slot] != 0) {
+            if (this.keys[slot] == key) {
+                return this.groups[slot] - 1;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        if (this.values.size() >= maxGroups) {
+            return -1;
+        }
+        int group = this.values.size();
+        this.values.add(value);
+        this.keys[slot] = key;
+        this.groups[slot] = group + 1;
+        // keep the table at most half full
+        if (2 * this.values.size() > this.keys.length) {
+            grow();
+        }
+        return group;
+    }
+
+    /**
+     * @return the group-by value of group, or null if there is no grouping
+     */
+    public Field value(int group) {
+        return this.values.get(group);
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        return this.values.size();
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    private void grow() {
+        int[] oldKeys = this.keys;
+        int[] oldGroups = this.groups;
+        this.keys = new int[2 * oldKeys.length];
+        this.groups = new int[2 * oldGroups.length];
+        this.mask = this.keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldGroups[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                while (this.groups[slot] != 0) {
+                    slot = (slot + 1) & this.mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.groups[slot] = oldGroups[i];
+            }
+        }
+    }
+
+    /**
+     * Grows an array of per-group state so that it has room for group.
+     */
+    static int[] ensureCapacity(int[] state, int group) {
+        return group < state.length ? state : Arrays.copyOf(state, Math.max(2 * state.length, group + 1));
+    }
+
+    /**
+     * Grows an array of per-group state so that it has room for group.
+     */
+    static long[] ensureCapacity(long[] state, int group) {
+        return group < state.length ? state : Arrays.copyOf(state, Math.max(2 * state.length, group + 1));
+    }
+}
@@ -2,11 +2,13 @@ package simpledb;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -22,6 +24,13 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc td;
+    private final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    /**
+     * Page images fetched by prepareRead that readPage has not consumed yet,
+     * keyed by page number.
+     */
+    private final Map<Integer, byte[]> prepared;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -33,6 +42,9 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(f);
+        this.prepared = new ConcurrentHashMap<>();
     }
 
     /**
@@ -45,6 +57,13 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * Returns the channel all page I/O of this HeapFile goes through.
+     */
+    protected DbFileChannel getChannel() {
+        return this.channel;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -75,59 +94,96 @@ public class HeapFile implements DbFile {
         if (pid.getPageNumber() < 0 || pid.getPageNumber() >= this.numPages()) {
             throw new NoSuchElementException(String.format("Page number: %d doesn't exist", pid.getPageNumber()));
         }
-        RandomAccessFile fin = null;
-        byte[] data = new byte[BufferPool.getPageSize()];
-        try {
-            fin = new RandomAccessFile(this.file, "r");
-            fin.skipBytes(pid.getPageNumber() * BufferPool.getPageSize());
-            fin.read(data, 0, data.length);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fin != null) {
-                try {
-                    fin.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        byte[] data = this.prepared.remove(pid.getPageNumber());
+        if (data == null) {
+            data = new byte[BufferPool.getPageSize()];
+            try {
+                this.channel.read(data, (long) pid.getPageNumber() * BufferPool.getPageSize());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
         try {
-            return new HeapPage((HeapPageId) pid, data);
+            HeapPage page = this.createPage((HeapPageId) pid, data);
+            // the page on disk is authoritative, e.g. after an aborted insert
+            this.freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots() > 0);
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Creates the page object for the bytes of a page of this file.
+     * Subclasses override this to store pages in a different format.
+     */
+    protected HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
+    /**
+     * Reads every run of consecutive pages among pids with a single read, so
+     * that the readPage calls that follow do not touch the disk.
+     */
+    @Override
+    public void prepareRead(List<PageId> pids) {
+        int pageSize = BufferPool.getPageSize();
+        int i = 0;
+        while (i < pids.size()) {
+            int first = pids.get(i).getPageNumber();
+            int count = 1;
+            while (i + count < pids.size() && pids.get(i + count).getPageNumber() == first + count) {
+                count++;
+            }
+            byte[] run = new byte[count * pageSize];
+            try {
+                this.channel.read(run, (long) first * pageSize);
+            } catch (IOException e) {
+                // readPage falls back to reading the pages one at a time
+                e.printStackTrace();
+                i += count;
+                continue;
+            }
+            for (int j = 0; j < count; j++) {
+                byte[] data = new byte[pageSize];
+                System.arraycopy(run, j * pageSize, data, 0, pageSize);
+                this.prepared.put(first + j, data);
+            }
+            i += count;
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile fout = null;
-        try {
-            fout = new RandomAccessFile(this.file, "rw");
-            fout.skipBytes(page.getId().getPageNumber() * BufferPool.getPageSize());
-            fout.write(page.getPageData());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fout != null) {
-                try {
-                    fout.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        int pgNo = page.getId().getPageNumber();
+        this.prepared.remove(pgNo);
+        this.channel.write(page.getPageData(), (long) pgNo * BufferPool.getPageSize());
+        this.freeSpace.persist(pgNo, ((HeapPage) page).getNumEmptySlots() > 0, this.numPages());
+    }
+
+    /**
+     * Closes the data file and its free space map; they are reopened on the
+     * next access.
+     */
+    public void close() throws IOException {
+        this.channel.close();
+        this.freeSpace.close();
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile, from the size of the file
+     * the open channel reports, counting a partly written last page.
      */
     public int numPages() {
         // some code goes here
-        return (int)((this.file.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+        try {
+            return (int) ((this.channel.size() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -135,21 +191,24 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        for (int i = 0; i <= this.numPages(); i++) {
+        // only visit pages the free-space map does not know to be full
+        for (int i = this.freeSpace.nextFreePage(0, this.numPages()); i >= 0;
+             i = this.freeSpace.nextFreePage(i + 1, this.numPages())) {
             HeapPageId hpId = new HeapPageId(getId(), i);  // HeapFile id is associated with table id
-            HeapPage page = i < this.numPages() ?
-                    (HeapPage) Database.getBufferPool().getPage(tid, hpId, Permissions.READ_WRITE) :
-                    new HeapPage(new HeapPageId(this.getId(), i), HeapPage.createEmptyPageData());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, hpId, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
                 page.insertTuple(t);
-                // flush newly created page to disk
-                if (i == this.numPages()) {
-                    this.writePage(page);
-                }
+                this.freeSpace.update(i, page.getNumEmptySlots() > 0);
                 return new ArrayList<>(Collections.singletonList(page));
             }
+            this.freeSpace.update(i, false);
+            Database.getBufferPool().unpinPage(tid, hpId);
         }
-        throw new DbException("Failed to insert this tuple");
+        // every page is full: append a new one and flush it to disk
+        HeapPage page = this.createPage(new HeapPageId(this.getId(), this.numPages()), HeapPage.createEmptyPageData());
+        page.insertTuple(t);
+        this.writePage(page);
+        return new ArrayList<>(Collections.singletonList(page));
     }
 
     // see DbFile.java for javadocs
@@ -162,6 +221,7 @@ public class HeapFile implements DbFile {
         }
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        this.freeSpace.update(pid.getPageNumber(), true);
         return new ArrayList<>(Collections.singleton(page));
     }
 
@@ -171,13 +231,35 @@ public class HeapFile implements DbFile {
         return new DbFileIterator() {
             private int curPage = -1;
             private Iterator<Tuple> iter = null;
+            private HeapPageId pinned = null;
+            private final ReadAhead readAhead = new ReadAhead(getId());
+
+            /**
+             * Fetches page pgNo through the buffer pool, unpinning the page
+             * this iterator was reading before.
+             */
+            private Iterator<Tuple> fetch(int pgNo) throws DbException, TransactionAbortedException {
+                this.unpin();
+                HeapPageId pid = new HeapPageId(getId(), pgNo);
+                this.readAhead.pageAccessed(pgNo, numPages());
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                this.pinned = pid;
+                return page.iterator();
+            }
+
+            private void unpin() {
+                if (this.pinned != null) {
+                    Database.getBufferPool().unpinPage(tid, this.pinned);
+                    this.pinned = null;
+                }
+            }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 this.curPage = 0;
                 while (this.curPage < numPages()) {
                     if (this.iter == null) {
-                        this.iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), this.curPage), Permissions.READ_ONLY)).iterator();
+                        this.iter = this.fetch(this.curPage);
                     }
                     if (!this.iter.hasNext()) {
                         this.curPage++;
@@ -205,7 +287,7 @@ public class HeapFile implements DbFile {
                 if (!this.iter.hasNext()) {
                     this.curPage++;
                     while (this.curPage < numPages()) {
-                        this.iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), this.curPage), Permissions.READ_ONLY)).iterator();
+                        this.iter = this.fetch(this.curPage);
                         if (!this.iter.hasNext()) {
                             this.curPage++;
                         } else {
@@ -227,6 +309,8 @@ public class HeapFile implements DbFile {
 
             @Override
             public void close() {
+                this.unpin();
+                this.readAhead.reset();
                 this.curPage = -1;
                 this.iter = null;
             }
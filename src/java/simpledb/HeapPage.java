@@ -1,19 +1,23 @@
 package simpledb;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Objects;
-import java.util.stream.Collectors;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the raw bytes of the page and decodes fields only when
+ * they are asked for, by slot and column offset. Tuples returned by the
+ * iterator decode their fields on first access. The bytes passed to the
+ * constructor are shared, not copied; the page copies them the first time
+ * it is modified, and again when it is modified while tuples handed out by
+ * an iterator may still decode from the old bytes.
  *
  * @see HeapFile
  * @see BufferPool
@@ -22,12 +26,26 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    final int[] fieldOffsets;
     private final Byte oldDataLock = new Byte((byte) 0);
+    /**
+     * The before image, or null while the page is unchanged since the last
+     * setBeforeImage, in which case the current bytes are the before image.
+     */
     byte[] oldData;
     private TransactionId dirtyTid;
+    /**
+     * The page bytes; only accessed with absolute offsets.
+     */
+    ByteBuffer data;
+    /**
+     * True while data may be read by someone else, i.e. it was passed in by
+     * the caller or handed out to an iterator; it is copied before the next
+     * modification.
+     */
+    private boolean shared;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -41,31 +59,38 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The page does not copy data unless it is modified, so the caller must
+     * not change data afterwards.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over the remaining bytes of a buffer, e.g. a slice of
+     * a memory-mapped file, without copying them. The buffer may be
+     * read-only; the page copies it before the first modification.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.fieldOffsets = new int[this.td.numFields()];
+        for (int j = 1; j < this.fieldOffsets.length; j++) {
+            this.fieldOffsets[j] = this.fieldOffsets[j - 1] + this.td.getFieldType(j - 1).getLen();
+        }
+        if (data.remaining() < BufferPool.getPageSize()) {
+            throw new IOException("Page data is shorter than a page: " + data.remaining());
         }
-        dis.close();
+        this.data = data.slice();
+        this.shared = true;
 
         setBeforeImage();
     }
@@ -89,7 +114,7 @@ public class HeapPage implements Page {
      *
      * @return the number of tuples on this page
      */
-    private int getNumTuples() {
+    int getNumTuples() {
         // some code goes here
         return (BufferPool.getPageSize() * 8) / (this.td.getSize() * 8 + 1);
     }
@@ -110,11 +135,7 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
+            return new HeapPage(pid, getBeforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -123,9 +144,24 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * @return the bytes of the before image of this page
+     */
+    byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData != null ? oldData : getPageData();
+        }
+    }
+
+    /**
+     * Makes the current contents the before image. Nothing is copied here:
+     * the bytes are captured by {@link #prepareWrite} when the page is
+     * first modified afterwards, so pages that are only read never copy
+     * them.
+     */
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
         }
     }
 
@@ -138,37 +174,65 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of slot slotId in the page
+     */
+    private int slotOffset(int slotId) {
+        return this.headerSize + slotId * this.td.getSize();
+    }
+
+    /**
+     * @param bytes  the page bytes, i.e. data or an older snapshot of it
+     * @param slotId a slot that is in use in bytes
+     * @return the offset of field i of the tuple in slot slotId
+     */
+    int fieldOffset(ByteBuffer bytes, int slotId, int i) {
+        return slotOffset(slotId) + this.fieldOffsets[i];
+    }
+
+    /**
+     * @param bytes the page bytes, i.e. data or an older snapshot of it
+     * @return the first slot at or after slotId that is in use in bytes, or
+     * numSlots if there is none
+     */
+    int nextUsedSlot(ByteBuffer bytes, int slotId) {
+        while (slotId < this.numSlots && (bytes.get(slotId / 8) & (1 << (slotId % 8))) == 0) {
+            slotId++;
+        }
+        return slotId;
+    }
+
+    /**
+     * Decodes a single field straight from the page bytes.
+     *
+     * @param slotId the slot of the tuple, which must be in use
+     * @param i      the index of the field
+     * @return the value of field i of the tuple in slot slotId
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    public Field getField(int slotId, int i) {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+            throw new NoSuchElementException("Slot " + slotId + " is empty");
         }
+        return this.td.getFieldType(i).parse(this.data, fieldOffset(this.data, slotId, i));
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Makes data private to this page before it is modified, keeping the
+     * unmodified bytes as the before image if there is none yet.
+     */
+    void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                // getPageData marks an array-backed buffer shared, so the
+                // before image is kept without a copy of its own
+                oldData = getPageData();
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
+        if (this.shared) {
+            byte[] copy = new byte[BufferPool.getPageSize()];
+            this.data.duplicate().get(copy);
+            this.data = ByteBuffer.wrap(copy);
+            this.shared = false;
+        }
     }
 
     /**
@@ -178,70 +242,23 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page keeps its bytes in this format already, so this usually
+     * returns the backing array itself, which the page then treats as
+     * shared. Callers must not modify it.
      *
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen =
-                BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (this.data.hasArray() && this.data.arrayOffset() == 0 && this.data.array().length == len) {
+            this.shared = true;
+            return this.data.array();
         }
-
-        return baos.toByteArray();
+        byte[] bytes = new byte[len];
+        this.data.duplicate().get(bytes);
+        return bytes;
     }
 
     /**
@@ -258,11 +275,17 @@ public class HeapPage implements Page {
         if (!this.pid.equals(t.getRecordId().getPageId())) {
             throw new DbException("This tuple is not on this page");
         }
-        if (!this.isSlotUsed(t.getRecordId().getTupleNumber())) {
+        int slotId = t.getRecordId().getTupleNumber();
+        if (!this.isSlotUsed(slotId)) {
             throw new DbException("Tuple slot is already empty");
         }
-        this.tuples[t.getRecordId().getTupleNumber()] = null;
-        this.markSlotUsed(t.getRecordId().getTupleNumber(), false);
+        this.prepareWrite();
+        this.markSlotUsed(slotId, false);
+        // empty slots are all zeroes on disk
+        int offset = slotOffset(slotId);
+        for (int i = 0; i < this.td.getSize(); i++) {
+            this.data.put(offset + i, (byte) 0);
+        }
     }
 
     /**
@@ -281,7 +304,21 @@ public class HeapPage implements Page {
         }
         for (int i=0; i<this.numSlots; i++) {
             if (!isSlotUsed(i)) {
-                this.tuples[i] = t;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(this.td.getSize());
+                DataOutputStream dos = new DataOutputStream(baos);
+                try {
+                    for (int j = 0; j < this.td.numFields(); j++) {
+                        t.getField(j).serialize(dos);
+                    }
+                    dos.flush();
+                } catch (IOException e) {
+                    // this really shouldn't happen
+                    e.printStackTrace();
+                }
+                this.prepareWrite();
+                ByteBuffer slot = this.data.duplicate();
+                slot.position(slotOffset(i));
+                slot.put(baos.toByteArray());
                 t.setRecordId(new RecordId(this.pid, i));
                 this.markSlotUsed(i, true);
                 return;
@@ -314,17 +351,11 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int total = 0;
-        for (byte item : this.header) {
-            byte tmp = item;
-            int cnt = 0;
-            while (tmp != 0) {
-                tmp &= tmp - 1;
-                cnt++;
-            }
-            total += 8 - cnt;
+        int used = 0;
+        for (int i = 0; i < this.headerSize; i++) {
+            used += Integer.bitCount(this.data.get(i) & 0xff);
         }
-        return total;
+        return this.numSlots - used;
     }
 
     /**
@@ -332,7 +363,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        return (this.header[i / 8] & (1 << (i % 8))) != 0;
+        return (this.data.get(i / 8) & (1 << (i % 8))) != 0;
     }
 
     /**
@@ -341,11 +372,13 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        byte b = this.data.get(i / 8);
         if (value) {
-            this.header[i / 8] |= 1 << (i % 8);
+            b |= 1 << (i % 8);
         } else {
-            this.header[i / 8] &= ~(1 << (i % 8));
+            b &= ~(1 << (i % 8));
         }
+        this.data.put(i / 8, b);
     }
 
     /**
@@ -354,9 +387,86 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        TupleIterator iter = new TupleIterator(this.td, Arrays.stream(this.tuples).filter(Objects::nonNull).collect(Collectors.toList()));
-        iter.open();
-        return iter.i;
+        // the iterator and its tuples read the current bytes, which must
+        // therefore stay unchanged
+        this.shared = true;
+        final ByteBuffer snapshot = this.data;
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(snapshot, 0);
+
+            @Override
+            public boolean hasNext() {
+                return this.next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = new PageTuple(snapshot, this.next);
+                this.next = nextUsedSlot(snapshot, this.next + 1);
+                return t;
+            }
+        };
     }
-}
 
+    /**
+     * A tuple of this page whose fields are decoded from the page bytes the
+     * first time they are read.
+     */
+    private class PageTuple extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient final ByteBuffer bytes;
+        private final int slotId;
+
+        PageTuple(ByteBuffer bytes, int slotId) {
+            super(td);
+            this.bytes = bytes;
+            this.slotId = slotId;
+            this.setRecordId(new RecordId(pid, slotId));
+        }
+
+        @Override
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null) {
+                f = td.getFieldType(i).parse(this.bytes, fieldOffset(this.bytes, this.slotId, i));
+                super.setField(i, f);
+            }
+            return f;
+        }
+
+        private void decodeAll() {
+            for (int i = 0; i < td.numFields(); i++) {
+                this.getField(i);
+            }
+        }
+
+        @Override
+        public Iterator<Field> fields() {
+            this.decodeAll();
+            return super.fields();
+        }
+
+        @Override
+        public String toString() {
+            this.decodeAll();
+            return super.toString();
+        }
+
+        /**
+         * Serializes as a plain Tuple, since the page bytes do not travel.
+         */
+        private Object writeReplace() throws ObjectStreamException {
+            Tuple t = new Tuple(this.getTupleDesc());
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, this.getField(i));
+            }
+            t.setRecordId(this.getRecordId());
+            return t;
+        }
+    }
+}
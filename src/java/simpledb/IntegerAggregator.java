@@ -1,16 +1,15 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
- * Knows how to compute some aggregate over a set of IntFields.
+ * Knows how to compute some aggregate over a set of IntFields. The tuples
+ * are not kept: each group keeps a running sum, count, minimum and maximum,
+ * so memory grows with the number of groups rather than with the input.
  */
-public class IntegerAggregator implements Aggregator {
+public class IntegerAggregator implements Aggregator, MultiAggregator.GroupState {
 
     private static final long serialVersionUID = 1L;
 
@@ -18,7 +17,12 @@ public class IntegerAggregator implements Aggregator {
     private Type groupByFieldType;
     private int aggregateField;
     private Op aggregateOp;
-    private List<Tuple> tuples;
+    private GroupIndex groups;
+    // the running state of each group, by group number
+    private long[] sums;
+    private int[] counts;
+    private int[] mins;
+    private int[] maxs;
 
     /**
      * Aggregate constructor
@@ -33,10 +37,23 @@ public class IntegerAggregator implements Aggregator {
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, new GroupIndex(gbfield, gbfieldtype));
+    }
+
+    /**
+     * Aggregate constructor for an aggregator that numbers its groups with
+     * groups, which it may share with other aggregators.
+     */
+    IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, GroupIndex groups) {
         this.groupByField = gbfield;
         this.groupByFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.aggregateOp = what;
+        this.groups = groups;
+        this.sums = new long[16];
+        this.counts = new int[16];
+        this.mins = new int[16];
+        this.maxs = new int[16];
     }
 
     /**
@@ -47,10 +64,35 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (this.tuples == null) {
-            this.tuples = new ArrayList<>();
+        mergeTupleIntoGroup(tup, Integer.MAX_VALUE);
+    }
+
+    public boolean mergeTupleIntoGroup(Tuple tup, int maxGroups) {
+        int group = this.groups.groupOf(tup, maxGroups);
+        if (group == -1) {
+            return false;
         }
-        this.tuples.add(tup);
+        merge(group, tup);
+        return true;
+    }
+
+    public void merge(int group, Tuple tup) {
+        int value = ((IntField) tup.getField(this.aggregateField)).getValue();
+        if (group >= this.counts.length) {
+            this.sums = GroupIndex.ensureCapacity(this.sums, group);
+            this.counts = GroupIndex.ensureCapacity(this.counts, group);
+            this.mins = GroupIndex.ensureCapacity(this.mins, group);
+            this.maxs = GroupIndex.ensureCapacity(this.maxs, group);
+        }
+        if (this.counts[group] == 0) {
+            this.mins[group] = value;
+            this.maxs[group] = value;
+        } else {
+            this.mins[group] = Math.min(this.mins[group], value);
+            this.maxs[group] = Math.max(this.maxs[group], value);
+        }
+        this.sums[group] += value;
+        this.counts[group]++;
     }
 
     /**
@@ -63,172 +105,39 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        switch (this.aggregateOp) {
-        case AVG:
-            return avg(this.tuples, this.groupByFieldType, this.groupByField, this.aggregateField);
-        case MAX:
-            return max(this.tuples, this.groupByFieldType, this.groupByField, this.aggregateField);
-        case MIN:
-            return min(this.tuples, this.groupByFieldType, this.groupByField, this.aggregateField);
-        case SUM:
-            return sum(this.tuples, this.groupByFieldType, this.groupByField, this.aggregateField);
-        case COUNT:
-            return count(this.tuples, this.groupByFieldType, this.groupByField);
-        default:
-            throw new UnsupportedOperationException(String.format("%s is not supported in IntegerAggregator", this.aggregateOp.toString()));
-        }
-    }
-
-    private OpIterator min(List<Tuple> tuples, Type groupByFieldType, int groupByField, int aggregateField) {
-        if (tuples == null || tuples.isEmpty()) {
+        if (this.groups.numGroups() == 0) {
             throw new NoSuchElementException("No tuple can be processed");
         }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, new IntField(tuples.stream().mapToInt(item -> ((IntField)item.getField(aggregateField)).getValue()).min().orElseThrow(NoSuchElementException::new)));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        Map<Field, Integer> fieldToMinMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            int value = ((IntField)tuple.getField(aggregateField)).getValue();
-            fieldToMinMap.put(key, Math.min(fieldToMinMap.getOrDefault(key, value), value));
-        }
-        List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Map.Entry<Field, Integer> entry : fieldToMinMap.entrySet()) {
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, entry.getKey());
-            tuple.setField(1, new IntField(entry.getValue()));
-            result.add(tuple);
-        }
-        return new TupleIterator(td, result);
-    }
-
-    private OpIterator max(List<Tuple> tuples, Type groupByFieldType, int groupByField, int aggregateField) {
-        if (tuples == null || tuples.isEmpty()) {
-            throw new NoSuchElementException("No tuple can be processed");
-        }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, new IntField(tuples.stream().mapToInt(item -> ((IntField)item.getField(aggregateField)).getValue()).max().orElseThrow(NoSuchElementException::new)));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        Map<Field, Integer> fieldToMaxMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            int value = ((IntField)tuple.getField(aggregateField)).getValue();
-            fieldToMaxMap.put(key, Math.max(fieldToMaxMap.getOrDefault(key, value), value));
-        }
+        TupleDesc td = this.groupByField == NO_GROUPING ? new TupleDesc(new Type[] { Type.INT_TYPE })
+                : new TupleDesc(new Type[] { this.groupByFieldType, Type.INT_TYPE });
         List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Map.Entry<Field, Integer> entry : fieldToMaxMap.entrySet()) {
+        for (int group = 0; group < this.groups.numGroups(); group++) {
             Tuple tuple = new Tuple(td);
-            tuple.setField(0, entry.getKey());
-            tuple.setField(1, new IntField(entry.getValue()));
+            if (this.groupByField == NO_GROUPING) {
+                tuple.setField(0, new IntField(value(group, this.aggregateOp)));
+            } else {
+                tuple.setField(0, this.groups.value(group));
+                tuple.setField(1, new IntField(value(group, this.aggregateOp)));
+            }
             result.add(tuple);
         }
         return new TupleIterator(td, result);
     }
 
-    private OpIterator sum(List<Tuple> tuples, Type groupByFieldType, int groupByField, int aggregateField) {
-        if (tuples == null || tuples.isEmpty()) {
-            throw new NoSuchElementException("No tuple can be processed");
-        }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, new IntField(tuples.stream().mapToInt(item -> ((IntField)item.getField(aggregateField)).getValue()).sum()));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        // for grouping
-        Map<Field, Integer> fieldToSumMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            fieldToSumMap.put(key, fieldToSumMap.getOrDefault(key, 0) + ((IntField)tuple.getField(aggregateField)).getValue());
-        }
-        List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Map.Entry<Field, Integer> entry : fieldToSumMap.entrySet()) {
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, entry.getKey());
-            tuple.setField(1, new IntField(entry.getValue()));
-            result.add(tuple);
-        }
-        return new TupleIterator(td, result);
-    }
-
-    private OpIterator avg(List<Tuple> tuples, Type groupByFieldType, int groupByField, int aggregateField) {
-        if (tuples == null || tuples.isEmpty()) {
-            throw new NoSuchElementException("No tuple can be processed");
-        }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            int sum = tuples.stream().mapToInt(item -> ((IntField)item.getField(aggregateField)).getValue()).sum();
-            tuple.setField(0, new IntField(sum / tuples.size()));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        // for grouping
-        Map<Field, Integer> fieldToSumMap = new HashMap<>();
-        Map<Field, Integer> fieldToCountMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            fieldToSumMap.put(key, fieldToSumMap.getOrDefault(key, 0) + ((IntField)tuple.getField(aggregateField)).getValue());
-            fieldToCountMap.put(key, fieldToCountMap.getOrDefault(key, 0) + 1);
-        }
-        List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Field key : fieldToSumMap.keySet()) {
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, key);
-            tuple.setField(1, new IntField(fieldToSumMap.get(key) / fieldToCountMap.get(key)));
-            result.add(tuple);
-        }
-        return new TupleIterator(td, result);
-    }
-
-    private OpIterator count(List<Tuple> tuples, Type groupByFieldType, int groupByField) {
-        if (tuples == null || tuples.isEmpty()) {
-            throw new NoSuchElementException("No tuple can be processed");
-        }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, new IntField(tuples.size()));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        // for grouping
-        Map<Field, Integer> fieldToCountMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            fieldToCountMap.put(key, fieldToCountMap.getOrDefault(key, 0) + 1);
-        }
-        List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Map.Entry<Field, Integer> entry : fieldToCountMap.entrySet()) {
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, entry.getKey());
-            tuple.setField(1, new IntField(entry.getValue()));
-            result.add(tuple);
+    public int value(int group, Op op) {
+        switch (op) {
+        case AVG:
+            return (int) (this.sums[group] / this.counts[group]);
+        case MAX:
+            return this.maxs[group];
+        case MIN:
+            return this.mins[group];
+        case SUM:
+            return (int) this.sums[group];
+        case COUNT:
+            return this.counts[group];
+        default:
+            throw new UnsupportedOperationException(String.format("%s is not supported in IntegerAggregator", op.toString()));
         }
-        return new TupleIterator(td, result);
     }
 }
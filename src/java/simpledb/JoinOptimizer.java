@@ -202,6 +202,10 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if (this.joins.isEmpty()) {
+            // a query over one table; the plan cache has no order for it
+            return this.joins;
+        }
         PlanCache planCache = new PlanCache();
         for (int i=1; i<=this.joins.size(); i++) {
             for (Set<LogicalJoinNode> subSet : this.enumerateSubsets(this.joins, i)) {
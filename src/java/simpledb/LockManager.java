@@ -1,147 +1,1140 @@
 package simpledb;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager grants shared and exclusive locks on pages and tables to
+ * transactions.
+ * <p>
+ * Locking is hierarchical: before it locks a page, a transaction takes an
+ * intention lock (IS for reading, IX for writing) on the page's table.
+ * Once a transaction holds more than the escalation threshold of page locks
+ * on one table, its intention lock is escalated to a table lock, S or X,
+ * and its page locks on that table are dropped; later requests for pages of
+ * the table are covered by the table lock and do not touch the lock table.
+ * Escalation is only done when the table lock can be granted at once, so it
+ * never makes a transaction wait; otherwise the transaction keeps its page
+ * locks and escalation is retried on its next request. There is no SIX
+ * mode: a transaction that holds S on a table and writes one of its pages
+ * upgrades to X.
+ * <p>
+ * Every locked page or table has a queue. A request that cannot be granted
+ * at once is appended to the queue, and the requesting thread waits on the
+ * request until a release grants it; requests are granted in FIFO order,
+ * except that a lock upgrade goes to the front of the queue. Before
+ * waiting, the requester searches the wait-for graph for a cycle through
+ * itself. If there is one, the request is withdrawn and
+ * TransactionAbortedException is thrown. Since the graph changes while
+ * requests wait, one of the waiting threads also searches the whole graph
+ * every DEADLOCK_CHECK_INTERVAL ms and withdraws the request that closes
+ * each cycle it finds. Only transactions that are actually deadlocked are
+ * aborted, however long they wait, and the cost of the searches does not
+ * grow with the number of waiting threads.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them with
+ * one of the timestamp-ordered policies of {@link DeadlockPolicy}, which
+ * use {@link TransactionId#getAge} as the age of a transaction. These
+ * policies need no graph search, but they abort some transactions that
+ * would not have deadlocked. An aborted transaction should be restarted with
+ * a TransactionId that keeps its age, or it may be aborted over and over.
+ * <p>
+ * The queues are split into STRIPES stripes by resource, each guarded by
+ * its own monitor, so requests for different pages do not serialize on one
+ * lock. Each transaction also keeps the locks it holds in a concurrent map,
+ * so a request for a lock the transaction already holds, or that its table
+ * lock covers, is answered without taking any monitor. The wait-for graph
+ * is read one stripe at a time; a search may therefore see a cycle that
+ * was already broken and abort a transaction needlessly, but since waiters
+ * search again while they wait, no deadlock is missed.
+ * <p>
+ * Uncontended locks do not take a monitor either. Each queue has a state
+ * word that packs the number of transactions holding S on a page, or IS on
+ * a table, the number holding IX on a table, and whether a transaction
+ * holds X on a page. While the queue has no holders and no waiters, such
+ * locks are granted and released by compare-and-set on the word alone, and
+ * only the transaction records which locks it holds. The first request
+ * that cannot be decided this way closes the word under the stripe's
+ * monitor, which sends later requests to the queue, and moves the locks of
+ * the fast holders from the word to the queue's holders, where deadlock
+ * handling finds them. Finding the fast holders takes one pass over the
+ * transactions per closing; a holder that records its lock only after that
+ * pass moves the lock itself. The word opens
+ * again once the queue has no holders and no waiters left. A queue left
+ * idle by the fast path is kept for the next request on its resource,
+ * unless its stripe already has IDLE_QUEUES queues.
+ * <p>
+ * Monitors are always taken in the order stripe, then transaction, then
+ * request, and a thread never holds two stripes at once.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private static final int TIMEOUT = 500;
+    /**
+     * How often, in ms, a waiting transaction checks whether it has become
+     * part of a deadlock since it started waiting.
+     */
+    private static final long DEADLOCK_CHECK_INTERVAL = 100;
+    /**
+     * The lock table has 1 << STRIPE_BITS stripes.
+     */
+    private static final int STRIPE_BITS = 6;
+    /**
+     * A queue the fast path leaves idle is kept for the next request on its
+     * resource while its stripe has at most this many queues.
+     */
+    private static final int IDLE_QUEUES = 64;
 
-    private Map<PageId, PageLock> pageIdToTid;
-    private Map<TransactionId, Set<PageId>> tidToPageSet;
+    /*
+     * The state word of a queue: the number of fast holders of S on a page or
+     * IS on a table, the number of fast holders of IX on a table, whether a
+     * transaction holds X on a page through the fast path, and whether the
+     * fast path is closed. A dropped queue's word is DEAD.
+     */
+    private static final long READER = 1L;
+    private static final long READERS = (1L << 30) - 1;
+    private static final long INTENT_WRITER = 1L << 30;
+    private static final long INTENT_WRITERS = READERS << 30;
+    private static final long WRITER = 1L << 60;
+    private static final long CLOSED = 1L << 61;
+    private static final long DEAD = Long.MIN_VALUE;
+
+    private final Stripe[] stripes;
+    private final Map<TransactionId, TxnLocks> txns;
+    /**
+     * Transactions that an older transaction wounded under WOUND_WAIT; they
+     * abort on their next lock request.
+     */
+    private final Set<TransactionId> wounded;
+    /**
+     * When the whole wait-for graph was last searched, in ms.
+     */
+    private final AtomicLong lastDeadlockCheck = new AtomicLong();
+    private volatile DeadlockPolicy policy;
+    private volatile int escalationThreshold;
+
+    /**
+     * How the lock manager deals with deadlocks. A transaction is older than
+     * another if its age is smaller; ties are broken by id.
+     */
+    public enum DeadlockPolicy {
+        /**
+         * Waiters search the wait-for graph and abort on a cycle.
+         */
+        DETECT,
+        /**
+         * An older transaction wounds, i.e. aborts, the younger transactions
+         * it would wait for; a younger transaction waits for older ones.
+         */
+        WOUND_WAIT,
+        /**
+         * An older transaction waits for younger ones; a younger transaction
+         * that would wait for an older one dies, i.e. aborts, instead.
+         */
+        WAIT_DIE
+    }
 
     public enum LockType {
+        ISLock, // intention to read pages of a table
+        IXLock, // intention to write pages of a table
         SLock,  // read only
-        XLock,  // read & write
-        UnLock  // unlock
+        XLock;  // read & write
+
+        /**
+         * @return true if two transactions may hold this and other on the
+         * same resource
+         */
+        public boolean compatibleWith(LockType other) {
+            switch (this) {
+            case ISLock:
+                return other != XLock;
+            case IXLock:
+                return other == ISLock || other == IXLock;
+            case SLock:
+                return other == ISLock || other == SLock;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * @return true if holding this lock grants everything other does
+         */
+        public boolean covers(LockType other) {
+            switch (this) {
+            case ISLock:
+                return other == ISLock;
+            case IXLock:
+            case SLock:
+                return other == ISLock || other == this;
+            default:
+                return true;
+            }
+        }
+
+        /**
+         * @return the weakest lock that covers both this and other
+         */
+        public LockType combine(LockType other) {
+            if (this.covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S and IX: without SIX, only X covers both
+            return XLock;
+        }
     }
 
-    class PageLock {
-        Set<TransactionId> lockTidSet;
-        LockType type;
+    /**
+     * The holders of a resource's lock and the requests waiting for it.
+     * The holders and waiters are guarded by the monitor of the resource's
+     * stripe; the state word holds the locks granted without it.
+     */
+    private static class LockQueue {
+        final AtomicLong state = new AtomicLong();
+        final Map<TransactionId, LockType> holders = new HashMap<>();
+        final LinkedList<LockRequest> waiters = new LinkedList<>();
+        /**
+         * The lock the READERS of the state word hold: S on a page, IS on a
+         * table.
+         */
+        final LockType readerType;
+
+        LockQueue(Object resource) {
+            this.readerType = resource instanceof PageId ? LockType.SLock : LockType.ISLock;
+        }
+    }
+
+    /**
+     * The queues of the resources that hash to one stripe. Pages are keyed by
+     * their PageId and tables by their Integer table id. Queues are looked
+     * up and created by the fast path without the stripe's monitor, but
+     * only dropped once their state word is DEAD.
+     */
+    private static class Stripe {
+        final Map<Object, LockQueue> queues = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A lock a transaction holds, and whether it was granted through the
+     * state word of the resource's queue rather than by the queue.
+     */
+    private enum Held {
+        IS(LockType.ISLock, false), IX(LockType.IXLock, false), S(LockType.SLock, false), X(LockType.XLock, false),
+        FAST_IS(LockType.ISLock, true), FAST_IX(LockType.IXLock, true), FAST_S(LockType.SLock, true),
+        FAST_X(LockType.XLock, true);
+
+        private static final Held[] ALL = values();
+
+        final LockType type;
+        final boolean fast;
+
+        Held(LockType type, boolean fast) {
+            this.type = type;
+            this.fast = fast;
+        }
+
+        static Held of(LockType type, boolean fast) {
+            return ALL[type.ordinal() + (fast ? 4 : 0)];
+        }
+    }
+
+    /**
+     * The locks of one transaction, a copy of its entries in the queues and
+     * state words: table locks, and page locks by table. The maps may be read
+     * without locking; they are changed, and waiting is accessed, under this
+     * object's monitor, except that the fast path records the locks it
+     * grants without it, and that a lock is released by whoever forgets it.
+     */
+    private static class TxnLocks {
+        /**
+         * The initial capacity of the page locks of one table, so a short
+         * scan does not resize them.
+         */
+        static final int PAGES_PER_TABLE = 64;
 
-        public PageLock() {
-            this.lockTidSet = new HashSet<>();
-            this.type = LockType.UnLock;
+        final TransactionId tid;
+        final Map<Integer, Held> tables = new ConcurrentHashMap<>();
+        final Map<Integer, Map<PageId, Held>> pages = new ConcurrentHashMap<>();
+        /**
+         * The requests the transaction is waiting for. Usually there is one,
+         * but a transaction may wait in several threads.
+         */
+        final List<LockRequest> waiting = new ArrayList<>();
+        /**
+         * Set once all locks of the transaction are released; nothing is
+         * granted to it any more.
+         */
+        volatile boolean released;
+
+        TxnLocks(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        /**
+         * @return the lock held on resource, or null
+         */
+        Held held(Object resource) {
+            if (resource instanceof PageId) {
+                PageId pid = (PageId) resource;
+                Map<PageId, Held> table = this.pages.get(pid.getTableId());
+                return table == null ? null : table.get(pid);
+            }
+            return this.tables.get(resource);
+        }
+
+        /**
+         * @return the type of lock held on resource, or null
+         */
+        LockType get(Object resource) {
+            Held held = this.held(resource);
+            return held == null ? null : held.type;
+        }
+
+        /**
+         * Records that the transaction holds a lock on resource.
+         */
+        void record(Object resource, Held held) {
+            if (resource instanceof PageId) {
+                PageId pid = (PageId) resource;
+                Map<PageId, Held> table = this.pages.get(pid.getTableId());
+                if (table == null) {
+                    Map<PageId, Held> created = new ConcurrentHashMap<>(PAGES_PER_TABLE);
+                    table = this.pages.putIfAbsent(pid.getTableId(), created);
+                    if (table == null) {
+                        table = created;
+                    }
+                }
+                table.put(pid, held);
+            } else {
+                this.tables.put((Integer) resource, held);
+            }
+        }
+
+        /**
+         * Replaces the lock recorded on resource by held, if it is expected.
+         *
+         * @return false if another lock is recorded
+         */
+        boolean replace(Object resource, Held expected, Held held) {
+            if (resource instanceof PageId) {
+                PageId pid = (PageId) resource;
+                Map<PageId, Held> table = this.pages.get(pid.getTableId());
+                return table != null && table.replace(pid, expected, held);
+            }
+            return this.tables.replace((Integer) resource, expected, held);
+        }
+
+        /**
+         * Forgets the lock recorded on resource, if it is expected.
+         *
+         * @return false if another lock, or none, is recorded
+         */
+        boolean forget(Object resource, Held expected) {
+            if (resource instanceof PageId) {
+                PageId pid = (PageId) resource;
+                Map<PageId, Held> table = this.pages.get(pid.getTableId());
+                return table != null && table.remove(pid, expected);
+            }
+            return this.tables.remove(resource, expected);
+        }
+    }
+
+    /**
+     * A request that waits in a queue. The waiting thread waits on the
+     * request itself, so a release wakes exactly the threads it grants.
+     */
+    private static class LockRequest {
+        final TxnLocks txn;
+        final Object resource;
+        final LockType type;
+        boolean granted;
+        boolean aborted;
+
+        LockRequest(TxnLocks txn, Object resource, LockType type) {
+            this.txn = txn;
+            this.resource = resource;
+            this.type = type;
         }
     }
 
     public LockManager() {
-        this.pageIdToTid = new ConcurrentHashMap<>();
-        this.tidToPageSet = new ConcurrentHashMap<>();
+        this(DeadlockPolicy.DETECT, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param policy              how deadlocks are handled
+     * @param escalationThreshold the number of page locks a transaction may
+     *                            hold on one table before they are escalated
+     *                            to a table lock
+     */
+    public LockManager(DeadlockPolicy policy, int escalationThreshold) {
+        this.stripes = new Stripe[1 << STRIPE_BITS];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.txns = new ConcurrentHashMap<>();
+        this.wounded = ConcurrentHashMap.newKeySet();
+        this.policy = policy;
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    public DeadlockPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Sets the deadlock policy. It should be chosen before transactions
+     * start; requests that already wait keep waiting under the new policy.
+     */
+    public void setPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
     }
 
+    public int getEscalationThreshold() {
+        return this.escalationThreshold;
+    }
+
+    /**
+     * Sets how many page locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        if (escalationThreshold < 0) {
+            throw new IllegalArgumentException("Negative escalation threshold: " + escalationThreshold);
+        }
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    private Stripe stripeOf(Object resource) {
+        // HeapPageId and BTreePageId hash codes are far from uniform
+        return this.stripes[(resource.hashCode() * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+    }
+
+    /**
+     * Blocks until tid holds a lock on pid, or on its table, that allows
+     * perm. Takes the intention lock on the table first, and escalates to a
+     * table lock if tid now holds too many page locks on the table.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *                                     deadlock or the deadlock policy
+     *                                     aborts tid, or tid completed
+     *                                     while waiting
+     */
     public void aquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
-        long start = System.currentTimeMillis();
-        Random random = new Random(start);
-        while (true) {
-            if ((System.currentTimeMillis() - start) > TIMEOUT) {
-                throw new TransactionAbortedException();
-            }
+        LockType type;
+        LockType intention;
+        if (perm == Permissions.READ_ONLY) {
+            type = LockType.SLock;
+            intention = LockType.ISLock;
+        } else if (perm == Permissions.READ_WRITE) {
+            type = LockType.XLock;
+            intention = LockType.IXLock;
+        } else {
+            throw new DbException("Unknow permission: " + perm);
+        }
 
-            boolean status;
-            if (perm == Permissions.READ_ONLY) {
-                status = this.aquireReadLock(tid, pid);
-            } else if (perm == Permissions.READ_WRITE) {
-                status = this.aquireReadWriteLock(tid, pid);
+        if (this.wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        TxnLocks txn = this.txns.computeIfAbsent(tid, TxnLocks::new);
+        Integer table = pid.getTableId();
+        LockType tableLock = txn.get(table);
+        if (covers(tableLock, type) || covers(txn.get(pid), type)) {
+            return;
+        }
+        if (!covers(tableLock, intention)) {
+            this.lock(txn, table, intention);
+        }
+        this.lock(txn, pid, type);
+        this.escalate(txn, table);
+    }
+
+    private static boolean covers(LockType held, LockType type) {
+        return held != null && held.covers(type);
+    }
+
+    /**
+     * Blocks until txn holds a lock on resource that covers type.
+     */
+    private void lock(TxnLocks txn, Object resource, LockType type) throws TransactionAbortedException {
+        Stripe stripe = this.stripeOf(resource);
+        if (this.lockFast(stripe, txn, resource, type)) {
+            return;
+        }
+        LockRequest req;
+        synchronized (stripe) {
+            LockQueue queue = this.closedQueue(stripe, txn, resource);
+            LockType held = queue.holders.get(txn.tid);
+            if (held != null) {
+                if (held.covers(type)) {
+                    return;
+                }
+                type = held.combine(type);
+            }
+            // an upgrade cannot wait behind requests that wait for tid
+            if ((held != null || queue.waiters.isEmpty()) && this.compatible(queue, txn.tid, type)) {
+                if (!this.grant(queue, txn, resource, type)) {
+                    this.removeIfUnused(stripe, resource, queue);
+                    throw new TransactionAbortedException();
+                }
+                return;
+            }
+            req = new LockRequest(txn, resource, type);
+            synchronized (txn) {
+                if (txn.released) {
+                    this.removeIfUnused(stripe, resource, queue);
+                    throw new TransactionAbortedException();
+                }
+                txn.waiting.add(req);
+            }
+            if (held != null) {
+                queue.waiters.addFirst(req);
             } else {
-                throw new DbException("Unknow permission: " + perm);
+                queue.waiters.addLast(req);
             }
+        }
 
-            if (status) {
+        boolean granted = false;
+        try {
+            this.applyPolicy(req, true);
+            while (true) {
+                synchronized (req) {
+                    if (!req.granted && !req.aborted) {
+                        req.wait(DEADLOCK_CHECK_INTERVAL);
+                    }
+                    if (req.granted) {
+                        granted = true;
+                        return;
+                    }
+                    if (req.aborted) {
+                        throw new TransactionAbortedException();
+                    }
+                }
+                this.applyPolicy(req, false);
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            if (!granted) {
+                this.cancel(req);
+            }
+        }
+    }
+
+    /**
+     * @return the state word unit of a lock of the given type on resource,
+     * or 0 if the lock is not granted through the fast path
+     */
+    private static long unit(Object resource, LockType type) {
+        if (resource instanceof PageId) {
+            return type == LockType.SLock ? READER : type == LockType.XLock ? WRITER : 0;
+        }
+        return type == LockType.ISLock ? READER : type == LockType.IXLock ? INTENT_WRITER : 0;
+    }
+
+    /**
+     * Grants txn a lock that covers type on resource through the state word
+     * of the resource's queue, without taking any monitor, if the lock is
+     * one the fast path grants, the word is open and the lock is compatible
+     * with the fast holders. A lock txn holds through the fast path is
+     * upgraded in the word.
+     *
+     * @return false if the request must go to the queue
+     * @throws TransactionAbortedException if the locks of txn are released
+     */
+    private boolean lockFast(Stripe stripe, TxnLocks txn, Object resource, LockType type)
+            throws TransactionAbortedException {
+        Held held = txn.held(resource);
+        if (held != null && !held.fast) {
+            return false;
+        }
+        LockType target = held == null ? type : held.type.combine(type);
+        long add = unit(resource, target);
+        long sub = held == null ? 0 : unit(resource, held.type);
+        if (add == 0) {
+            return false;
+        }
+        LockQueue queue;
+        while (true) {
+            queue = stripe.queues.get(resource);
+            if (queue == null) {
+                LockQueue created = new LockQueue(resource);
+                queue = stripe.queues.putIfAbsent(resource, created);
+                if (queue == null) {
+                    queue = created;
+                }
+            }
+            long state = queue.state.get();
+            if (state == DEAD) {
+                stripe.queues.remove(resource, queue);
+                continue;
+            }
+            long others = state - sub;
+            if ((state & CLOSED) != 0 || (others & WRITER) != 0 || add == WRITER && others != 0) {
+                return false;
+            }
+            if (queue.state.compareAndSet(state, others + add)) {
                 break;
-            } else {
-                try {
-                    Thread.sleep(random.nextInt(25) + 1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            }
+        }
+        Held granted = Held.of(target, true);
+        if (held == null) {
+            txn.record(resource, granted);
+        } else if (!txn.replace(resource, held, granted)) {
+            // the lock was moved to the queue after it was read
+            this.leaveWord(stripe, queue, resource, add - sub);
+            return false;
+        }
+        if ((queue.state.get() & CLOSED) != 0) {
+            // the word was closed, and its closer may have missed the lock
+            synchronized (stripe) {
+                if ((queue.state.get() & CLOSED) != 0) {
+                    this.toQueue(queue, txn, resource);
                 }
             }
         }
+        if (txn.released) {
+            // releaseLock may have missed the lock
+            this.release(txn, resource, granted);
+            throw new TransactionAbortedException();
+        }
+        return true;
     }
 
-    private boolean aquireReadLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            PageLock pl = this.pageIdToTid.getOrDefault(pid, new PageLock());
-            if (pl.type == LockType.XLock) {
-                return pl.lockTidSet.contains(tid);
+    /**
+     * Takes the lock txn holds on resource out of the state word or the
+     * queue, and grants the waiters it may have blocked. The caller has
+     * made txn forget the lock.
+     */
+    private void unlock(TxnLocks txn, Object resource, Held held) {
+        Stripe stripe = this.stripeOf(resource);
+        if (held.fast) {
+            // the queue is not dropped while the lock is in its word
+            this.leaveWord(stripe, stripe.queues.get(resource), resource, unit(resource, held.type));
+            return;
+        }
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(resource);
+            if (queue != null) {
+                queue.holders.remove(txn.tid);
+                this.grantWaiters(stripe, resource);
             }
-            pl.lockTidSet.add(tid);
-            pl.type = LockType.SLock;
-            this.pageIdToTid.put(pid, pl);
-            this.updateTransactionRecord(tid, pid);
-            return true;
         }
     }
 
-    private boolean aquireReadWriteLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            PageLock pl = this.pageIdToTid.getOrDefault(pid, new PageLock());
-            if (pl.type == LockType.XLock) {
-                return pl.lockTidSet.contains(tid);
+    /**
+     * Takes units out of the state word of queue, and grants the waiters
+     * they may have blocked if the word is closed.
+     */
+    private void leaveWord(Stripe stripe, LockQueue queue, Object resource, long units) {
+        long state = queue.state.addAndGet(-units);
+        if (state == 0 && stripe.queues.size() > IDLE_QUEUES && queue.state.compareAndSet(0, DEAD)) {
+            stripe.queues.remove(resource, queue);
+        }
+        if ((state & CLOSED) != 0) {
+            synchronized (stripe) {
+                this.grantWaiters(stripe, resource);
             }
-            if ((pl.type == LockType.SLock && pl.lockTidSet.size() == 1 && pl.lockTidSet.contains(tid))
-                    || pl.type == LockType.UnLock) {
-                pl.lockTidSet.add(tid);
-                pl.type = LockType.XLock;
-                this.pageIdToTid.put(pid, pl);
-                this.updateTransactionRecord(tid, pid);
-                return true;
+        }
+    }
+
+    /**
+     * @return the queue of resource, with its state word closed so that
+     * holders and waiters may be added to the queue, and the fast path
+     * locks of txn moved to its holders. When the word is closed, the locks
+     * of the other fast holders are moved too. The caller holds the monitor
+     * of stripe.
+     */
+    private LockQueue closedQueue(Stripe stripe, TxnLocks txn, Object resource) {
+        while (true) {
+            LockQueue queue = stripe.queues.computeIfAbsent(resource, LockQueue::new);
+            long state = queue.state.get();
+            if (state == DEAD) {
+                stripe.queues.remove(resource, queue);
+            } else if ((state & CLOSED) != 0) {
+                this.toQueue(queue, txn, resource);
+                return queue;
+            } else if (queue.state.compareAndSet(state, state | CLOSED)) {
+                this.toQueue(queue, txn, resource);
+                // a lock recorded after this scan is moved by its holder, see lockFast
+                for (TxnLocks other : this.txns.values()) {
+                    if ((queue.state.get() & (READERS | INTENT_WRITERS | WRITER)) == 0) {
+                        break;
+                    }
+                    this.toQueue(queue, other, resource);
+                }
+                return queue;
             }
+        }
+    }
+
+    /**
+     * Moves the lock txn holds on resource through the fast path from the
+     * state word of queue to its holders. The caller holds the monitor of
+     * the stripe and has closed the queue.
+     */
+    private void toQueue(LockQueue queue, TxnLocks txn, Object resource) {
+        synchronized (txn) {
+            // once txn is released, releaseLock takes its locks out of the words
+            Held held = txn.released ? null : txn.held(resource);
+            if (held != null && held.fast && txn.replace(resource, held, Held.of(held.type, false))) {
+                queue.state.addAndGet(-unit(resource, held.type));
+                queue.holders.put(txn.tid, held.type);
+            }
+        }
+    }
+
+    /**
+     * @return true if tid may hold a lock of the given type on the resource
+     * along with the current holders
+     */
+    private boolean compatible(LockQueue queue, TransactionId tid, LockType type) {
+        // the fast holders left in the word do not include tid, see closedQueue
+        long state = queue.state.get();
+        if (state != DEAD && ((state & WRITER) != 0
+                || (state & READERS) != 0 && !type.compatibleWith(queue.readerType)
+                || (state & INTENT_WRITERS) != 0 && !type.compatibleWith(LockType.IXLock))) {
             return false;
         }
+        for (Map.Entry<TransactionId, LockType> holder : queue.holders.entrySet()) {
+            if (!holder.getKey().equals(tid) && !type.compatibleWith(holder.getValue())) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public void releaseLock(TransactionId tid) {
-        if (this.tidToPageSet.containsKey(tid)) {
-            for (PageId pid : this.tidToPageSet.get(tid)) {
-                synchronized (pid) {
-                    if (this.pageIdToTid.containsKey(pid)) {
-                        PageLock lock = this.pageIdToTid.get(pid);
-                        lock.lockTidSet.remove(tid);
-                        if (lock.lockTidSet.size() == 0) {
-                            lock.type = LockType.UnLock;
-                            this.pageIdToTid.remove(pid);
-                        }
+    /**
+     * Records that txn holds a lock of the given type on resource. The
+     * caller holds the monitor of the resource's stripe.
+     *
+     * @return false if the locks of txn were already released
+     */
+    private boolean grant(LockQueue queue, TxnLocks txn, Object resource, LockType type) {
+        synchronized (txn) {
+            if (txn.released) {
+                return false;
+            }
+            txn.record(resource, Held.of(type, false));
+        }
+        queue.holders.put(txn.tid, type);
+        return true;
+    }
+
+    /**
+     * Opens the state word of queue again if it has no holders and no
+     * waiters, and drops the queue if it has no fast holders either. The
+     * caller holds the monitor of stripe.
+     */
+    private void removeIfUnused(Stripe stripe, Object resource, LockQueue queue) {
+        if (queue.holders.isEmpty() && queue.waiters.isEmpty()) {
+            long state = queue.state.get();
+            while ((state & CLOSED) != 0 && !queue.state.compareAndSet(state, state & ~CLOSED)) {
+                state = queue.state.get();
+            }
+            if (queue.state.compareAndSet(0, DEAD)) {
+                stripe.queues.remove(resource, queue);
+            }
+        }
+    }
+
+    /**
+     * Replaces the intention lock of txn on table by a table lock and drops
+     * its page locks on the table, if txn holds more page locks on the table
+     * than the escalation threshold and no other transaction holds a
+     * conflicting lock on the table.
+     */
+    private void escalate(TxnLocks txn, Integer table) {
+        Map<PageId, Held> pids = txn.pages.get(table);
+        if (pids == null || pids.size() <= this.escalationThreshold) {
+            return;
+        }
+        Map<PageId, Held> dropped;
+        Stripe stripe = this.stripeOf(table);
+        synchronized (stripe) {
+            LockQueue queue = this.closedQueue(stripe, txn, table);
+            LockType held = queue.holders.get(txn.tid);
+            if (held == null) {
+                this.removeIfUnused(stripe, table, queue);
+                return;
+            }
+            LockType target = held == LockType.ISLock ? LockType.SLock : held == LockType.IXLock ? LockType.XLock : held;
+            if (!this.compatible(queue, txn.tid, target)) {
+                return;
+            }
+            synchronized (txn) {
+                if (txn.released) {
+                    return;
+                }
+                txn.tables.put(table, Held.of(target, false));
+                dropped = txn.pages.remove(table);
+            }
+            queue.holders.put(txn.tid, target);
+        }
+        if (dropped == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Held> entry : dropped.entrySet()) {
+            this.unlock(txn, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Grants the requests at the head of the queue of resource that are
+     * compatible with the holders, and wakes their threads. The caller
+     * holds the monitor of stripe.
+     */
+    private void grantWaiters(Stripe stripe, Object resource) {
+        LockQueue queue = stripe.queues.get(resource);
+        if (queue == null) {
+            return;
+        }
+        while (!queue.waiters.isEmpty()) {
+            LockRequest head = queue.waiters.getFirst();
+            if (!this.compatible(queue, head.txn.tid, head.type)) {
+                break;
+            }
+            queue.waiters.removeFirst();
+            this.stopWaiting(head);
+            boolean granted = this.grant(queue, head.txn, resource, head.type);
+            synchronized (head) {
+                head.granted = granted;
+                head.aborted = !granted;
+                head.notifyAll();
+            }
+        }
+        this.removeIfUnused(stripe, resource, queue);
+    }
+
+    /**
+     * Withdraws a request that has not been granted, e.g. because its
+     * thread gave up waiting.
+     */
+    private void cancel(LockRequest req) {
+        Stripe stripe = this.stripeOf(req.resource);
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(req.resource);
+            if (queue != null && queue.waiters.remove(req)) {
+                this.stopWaiting(req);
+                // requests behind it may be grantable now
+                this.grantWaiters(stripe, req.resource);
+            }
+        }
+    }
+
+    private void stopWaiting(LockRequest req) {
+        synchronized (req.txn) {
+            req.txn.waiting.remove(req);
+        }
+    }
+
+    /**
+     * Decides whether req, which cannot be granted yet, may wait. Upgrades
+     * jump the queue, so the transactions req waits for can change while it
+     * waits; the decision is therefore repeated while req waits.
+     *
+     * @param first true before req starts waiting
+     * @throws TransactionAbortedException if req's transaction must abort
+     */
+    private void applyPolicy(LockRequest req, boolean first) throws TransactionAbortedException {
+        TransactionId tid = req.txn.tid;
+        if (this.wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        switch (this.policy) {
+        case DETECT:
+            if (first && this.deadlocked(tid)) {
+                throw new TransactionAbortedException();
+            }
+            if (!first) {
+                this.detectDeadlocks();
+            }
+            break;
+        case WOUND_WAIT:
+            for (TransactionId blocker : this.blockers(req)) {
+                if (older(tid, blocker) && this.wounded.add(blocker)) {
+                    TxnLocks txn = this.txns.get(blocker);
+                    if (txn != null) {
+                        this.abortWaits(txn);
                     }
                 }
             }
-            this.tidToPageSet.remove(tid);
+            break;
+        case WAIT_DIE:
+            for (TransactionId blocker : this.blockers(req)) {
+                if (older(blocker, tid)) {
+                    throw new TransactionAbortedException();
+                }
+            }
+            break;
         }
     }
 
-    public void releaseLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            if (this.pageIdToTid.containsKey(pid)) {
-                PageLock pl = this.pageIdToTid.get(pid);
-                pl.lockTidSet.remove(tid);
-                if (pl.lockTidSet.size() == 0) {
-                    pl.type = LockType.UnLock;
-                    this.pageIdToTid.remove(pid);
-                }
-                if (this.tidToPageSet.containsKey(tid)) {
-                    this.tidToPageSet.get(tid).remove(pid);
-                    if (this.tidToPageSet.get(tid).isEmpty()) {
-                        this.tidToPageSet.remove(tid);
+    private static boolean older(TransactionId a, TransactionId b) {
+        return a.getAge() < b.getAge() || a.getAge() == b.getAge() && a.getId() < b.getId();
+    }
+
+    private static List<LockRequest> waiting(TxnLocks txn) {
+        synchronized (txn) {
+            return new ArrayList<>(txn.waiting);
+        }
+    }
+
+    /**
+     * Withdraws all requests txn waits for; their threads throw
+     * TransactionAbortedException.
+     */
+    private void abortWaits(TxnLocks txn) {
+        for (LockRequest req : waiting(txn)) {
+            Stripe stripe = this.stripeOf(req.resource);
+            synchronized (stripe) {
+                LockQueue queue = stripe.queues.get(req.resource);
+                if (queue != null && queue.waiters.remove(req)) {
+                    this.stopWaiting(req);
+                    synchronized (req) {
+                        req.aborted = true;
+                        req.notifyAll();
                     }
+                    this.grantWaiters(stripe, req.resource);
                 }
             }
         }
     }
 
-    private void updateTransactionRecord(TransactionId tid, PageId pid) {
-        Set<PageId> pidSet = this.tidToPageSet.getOrDefault(tid, new HashSet<>());
-        pidSet.add(pid);
-        this.tidToPageSet.put(tid, pidSet);
+    /**
+     * Searches the wait-for graph for a cycle through start.
+     */
+    private boolean deadlocked(TransactionId start) {
+        Set<TransactionId> visited = new HashSet<>();
+        // each transaction is queued once, and its blockers read once
+        Set<TransactionId> frontier = new LinkedHashSet<>(this.blockers(start));
+        while (!frontier.isEmpty()) {
+            Iterator<TransactionId> next = frontier.iterator();
+            TransactionId tid = next.next();
+            next.remove();
+            if (tid.equals(start)) {
+                return true;
+            }
+            visited.add(tid);
+            for (TransactionId blocker : this.blockers(tid)) {
+                if (!visited.contains(blocker)) {
+                    frontier.add(blocker);
+                }
+            }
+        }
+        return false;
     }
 
+    /**
+     * Searches the whole wait-for graph for cycles, unless it was searched
+     * less than DEADLOCK_CHECK_INTERVAL ms ago, and withdraws the request
+     * that closes each cycle found; its thread throws
+     * TransactionAbortedException.
+     */
+    private void detectDeadlocks() {
+        long now = System.currentTimeMillis();
+        long last = this.lastDeadlockCheck.get();
+        if (now - last < DEADLOCK_CHECK_INTERVAL || !this.lastDeadlockCheck.compareAndSet(last, now)) {
+            return;
+        }
+        // depth-first search; a blocker on the current path closes a cycle
+        Set<TransactionId> finished = new HashSet<>();
+        Set<TransactionId> onPath = new HashSet<>();
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+        for (TransactionId start : this.txns.keySet()) {
+            if (finished.contains(start)) {
+                continue;
+            }
+            path.push(start);
+            onPath.add(start);
+            edges.push(this.blockers(start).iterator());
+            while (!path.isEmpty()) {
+                TransactionId top = path.peek();
+                Iterator<TransactionId> next = edges.peek();
+                TransactionId blocker = next.hasNext() ? next.next() : null;
+                if (blocker != null && onPath.contains(blocker)) {
+                    TxnLocks victim = this.txns.get(top);
+                    if (victim != null) {
+                        this.abortWaits(victim);
+                    }
+                    // top no longer waits
+                    blocker = null;
+                }
+                if (blocker == null) {
+                    path.pop();
+                    edges.pop();
+                    onPath.remove(top);
+                    finished.add(top);
+                } else if (!finished.contains(blocker)) {
+                    path.push(blocker);
+                    onPath.add(blocker);
+                    edges.push(this.blockers(blocker).iterator());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the transactions tid waits for in any of its requests
+     */
+    private List<TransactionId> blockers(TransactionId tid) {
+        List<TransactionId> blockers = new ArrayList<>();
+        TxnLocks txn = this.txns.get(tid);
+        if (txn != null) {
+            for (LockRequest req : waiting(txn)) {
+                blockers.addAll(this.blockers(req));
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * @return the transactions req waits for: the incompatible holders of
+     * its resource, and the incompatible requests ahead of it
+     */
+    private List<TransactionId> blockers(LockRequest req) {
+        List<TransactionId> blockers = new ArrayList<>();
+        Stripe stripe = this.stripeOf(req.resource);
+        synchronized (stripe) {
+            LockQueue queue = stripe.queues.get(req.resource);
+            if (queue == null) {
+                return blockers;
+            }
+            TransactionId tid = req.txn.tid;
+            boolean queued = false;
+            for (LockRequest ahead : queue.waiters) {
+                if (ahead == req) {
+                    queued = true;
+                    break;
+                }
+                if (!ahead.txn.tid.equals(tid) && !req.type.compatibleWith(ahead.type)) {
+                    blockers.add(ahead.txn.tid);
+                }
+            }
+            if (!queued) {
+                blockers.clear();
+                return blockers;
+            }
+            for (Map.Entry<TransactionId, LockType> holder : queue.holders.entrySet()) {
+                if (!holder.getKey().equals(tid) && !req.type.compatibleWith(holder.getValue())) {
+                    blockers.add(holder.getKey());
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Releases all locks of tid and withdraws the requests it is waiting
+     * for; their threads throw TransactionAbortedException.
+     */
+    public void releaseLock(TransactionId tid) {
+        TxnLocks txn = this.txns.remove(tid);
+        this.wounded.remove(tid);
+        if (txn == null) {
+            return;
+        }
+        synchronized (txn) {
+            // no lock changes between fast and slow once released is set
+            txn.released = true;
+        }
+        this.abortWaits(txn);
+        // a lock granted through the fast path after this point is released
+        // by its requester, see lockFast
+        for (Map.Entry<Integer, Held> entry : txn.tables.entrySet()) {
+            this.release(txn, entry.getKey(), entry.getValue());
+        }
+        for (Map<PageId, Held> table : txn.pages.values()) {
+            for (Map.Entry<PageId, Held> entry : table.entrySet()) {
+                this.release(txn, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Releases the lock txn holds on resource, held as far as the caller
+     * knows, unless the lock was already released by another thread.
+     */
+    private void release(TxnLocks txn, Object resource, Held held) {
+        // the lock may have been moved from the fast path to the queue
+        while (held != null && !txn.forget(resource, held)) {
+            held = txn.held(resource);
+        }
+        if (held != null) {
+            this.unlock(txn, resource, held);
+        }
+    }
+
+    /**
+     * Releases the lock of tid on pid. The intention lock on the table is
+     * kept, and a table lock is not affected.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        TxnLocks txn = this.txns.get(tid);
+        if (txn == null) {
+            return;
+        }
+        this.release(txn, pid, txn.held(pid));
+    }
+
+    /**
+     * @return true if tid holds a lock on pid, or an S or X lock on its
+     * table
+     */
     public boolean holdsLock(TransactionId tid, PageId pid) {
-        return this.tidToPageSet.containsKey(tid) && this.tidToPageSet.get(tid).contains(pid);
+        TxnLocks txn = this.txns.get(tid);
+        if (txn == null) {
+            return false;
+        }
+        LockType table = txn.get(pid.getTableId());
+        return txn.get(pid) != null || table == LockType.SLock || table == LockType.XLock;
     }
 
+    /**
+     * @return a copy of the set of pages tid holds page locks on; pages
+     * covered by a table lock are not included
+     */
     public Set<PageId> getLockedPageIdSet(TransactionId tid) {
-        return this.tidToPageSet.getOrDefault(tid, new HashSet<>());
+        Set<PageId> pids = new HashSet<>();
+        TxnLocks txn = this.txns.get(tid);
+        if (txn != null) {
+            for (Map<PageId, Held> table : txn.pages.values()) {
+                pids.addAll(table.keySet());
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * @return the tables tid holds an S or X lock on, i.e. whose pages it
+     * may use without page locks
+     */
+    public Set<Integer> getLockedTableIdSet(TransactionId tid) {
+        Set<Integer> tableIds = new HashSet<>();
+        TxnLocks txn = this.txns.get(tid);
+        if (txn != null) {
+            for (Map.Entry<Integer, Held> entry : txn.tables.entrySet()) {
+                LockType type = entry.getValue().type;
+                if (type == LockType.SLock || type == LockType.XLock) {
+                    tableIds.add(entry.getKey());
+                }
+            }
+        }
+        return tableIds;
     }
 }
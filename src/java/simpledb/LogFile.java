@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -12,20 +14,43 @@ import java.lang.reflect.*;
  * <u> Locking note: </u>
  * <p>
  * Many of the methods here are synchronized (to prevent concurrent log
- * writes from happening); many of the methods in BufferPool are also
- * synchronized (for similar reasons.)  Problem is that BufferPool writes
- * log records (on page flushed) and the log file flushes BufferPool
- * pages (on checkpoints and recovery.)  This can lead to deadlock.  For
- * that reason, any LogFile operation that needs to access the BufferPool
- * must not be declared synchronized and must begin with a block like:
+ * writes from happening).  BufferPool has no monitor of its own: each of
+ * its hash partitions has one, which is only held while the partition's
+ * page table is updated and never while calling out of the partition.
+ * BufferPool writes log records (on page flush) outside of any partition
+ * monitor, and the log file discards BufferPool pages (on rollback and
+ * recovery) while holding its own monitor, which takes a partition monitor
+ * inside it.  Locks are therefore always taken in the order log file, then
+ * partition, and the two cannot deadlock.
+ * <u> Group commit: </u>
  * <p>
- * <pre>
- * synchronized (Database.getBufferPool()) {
- * synchronized (this) {
- * ..
- * }
- * }
- * </pre>
+ * Log records are appended to an in-memory buffer, which is written to the
+ * file when someone forces the log or needs to read it back. Forcing is
+ * done by a log writer thread, outside the monitor of the log file: a
+ * caller of {@link #force} waits until the writer has forced everything it
+ * appended, and records appended while a force is running are forced
+ * together by the next one. So concurrent commits share their fsyncs
+ * instead of taking turns at one each.
+ * <p>
+ * <u> Checkpoints: </u>
+ * <p>
+ * Checkpoints are fuzzy: they do not write out any pages, but record the
+ * active transactions and the dirty page table, the pages with logged
+ * updates that may not have been written to disk yet, each with the
+ * offset of the first such update (its recLSN).  Recovery redoes those
+ * updates from the smallest recLSN on, and everything from the checkpoint
+ * on.  Since BufferPool forces the pages of a transaction when it commits,
+ * pages are only in the dirty page table while they are being flushed.  A
+ * checkpoint is taken in the background whenever the log has grown by
+ * {@link #setCheckpointBytes checkpointBytes} since the last one.
+ * <p>
+ * <u> Segments: </u>
+ * <p>
+ * The log is kept in a directory of fixed-size segment files (see
+ * {@link LogSegments}), and log offsets are LSNs that stay the same when
+ * the log is truncated.  Truncating after a checkpoint deletes the segments
+ * before the first record recovery still needs, rather than copying the
+ * rest of the log to a new file.
  */
 
 /**
@@ -33,33 +58,45 @@ import java.lang.reflect.*;
 
  <ul>
 
- <li> The first long integer of the file represents the offset of the
- last written checkpoint, or -1 if there are no checkpoints
+ <li> The manifest of the log directory holds the LSN of the first byte
+ of the log that was not truncated, and the LSN of the last written
+ checkpoint, or -1 if there are no checkpoints
 
- <li> All additional data in the log consists of log records.  Log
- records are variable length.
+ <li> All data in the segments consists of log records.  Log records are
+ variable length, and may span segments.
 
  <li> Each log record begins with an integer type and a long integer
  transaction id.
 
- <li> Each log record ends with a long integer file offset representing
- the position in the log file where the record began.
+ <li> Each log record ends with a long integer LSN representing the
+ position in the log where the record began.
 
  <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
  CHECKPOINT
 
  <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
- <li>UPDATE RECORDS consist of two entries, a before image and an
- after image.  These images are serialized Page objects, and can be
- accessed with the LogFile.readPageData() and LogFile.writePageData()
- methods.  See LogFile.print() for an example.
+ <li>UPDATE RECORDS describe a change to one page as the byte ranges of
+ the page that changed, rather than as full page images.  They consist of
+ the offset of the transaction's previous log record, which chains the
+ records of a transaction together for rollback; the page class name, page
+ id class name and serialized page id; the page size; and an integer
+ count of ranges, each an integer offset and length followed by the bytes
+ of the range before and after the change.  Ranges are taken relative to
+ the page image the previous update record of the page logged, so that
+ redo and undo can be applied to the page on disk.  The first update
+ record of a page after a checkpoint, or when that image is no longer
+ cached, logs the whole page as one range instead, so redo never depends
+ on what was on disk.  See LogFile.writeUpdate() and LogFile.applyUpdate().
 
  <li> CHECKPOINT records consist of active transactions at the time
- the checkpoint was taken and their first log record on disk.  The format
- of the record is an integer count of the number of transactions, as well
- as a long integer transaction id and a long integer first record offset
- for each active transaction.
+ the checkpoint was taken and their first and last log records on disk,
+ and of the dirty page table.  The format of the record is an integer
+ count of the number of transactions, as well as a long integer
+ transaction id, a long integer first record offset and a long integer
+ last record offset for each active transaction; then an integer count of
+ dirty pages, as well as the page id class name and serialized page id
+ and a long integer recLSN for each dirty page.
 
  </ul>
 
@@ -73,6 +110,12 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
+    /** Ranges of changed bytes closer than this are logged as one range. */
+    static final int MIN_RANGE_GAP = 16;
+    /** How many logged page images are kept to take ranges against. */
+    static final int MAX_LOGGED_IMAGES = 1024;
+    /** Default log growth after which a checkpoint is taken. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 16L << 20;
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
     final File logFile;
@@ -81,7 +124,43 @@ public class LogFile {
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
     HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
-    private RandomAccessFile raf;
+    HashMap<Long, Long> tidToLastLogRecord = new HashMap<Long, Long>();
+    /** The dirty page table: the first record of each page that logged
+     an update that may not be on disk yet. */
+    HashMap<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+    /** The image of each recently logged page as of its last update
+     record, in access order. */
+    private final LinkedHashMap<PageId, byte[]> loggedImages = new LinkedHashMap<PageId, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageId, byte[]> eldest) {
+            return size() > MAX_LOGGED_IMAGES;
+        }
+    };
+    private final LogSegments segments;
+    /** Reads the segments; see LogSegments#seek. */
+    private final DataInputStream in;
+
+    // the group commit state below is protected by this
+    /** How long an idle log writer waits for work before it exits. */
+    private static final long WRITER_IDLE_MILLIS = 1000;
+    /** Records appended but not yet written to the file; they end at currentOffset. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    /** Bytes of the buffer that belong to ended records. */
+    private int recorded = 0;
+    /** Bytes appended, durable, and asked to be durable, since the log was opened. */
+    private long appended = 0;
+    private long durable = 0;
+    private long requested = 0;
+    private Thread writer;
+    private boolean forcing = false;
+    private IOException writerFailure;
+    private int forces = 0;
+
+    private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES; //protected by this
+    private long lastCheckpoint = 0; // offset of the end of the log after the last checkpoint //protected by this
+    private Thread checkpointer; //protected by this
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors(); //protected by this
 
     /** Constructor.
      Initialize and back the log file with the specified file.
@@ -92,11 +171,12 @@ public class LogFile {
      do it, while if someone starts adding log file entries, then first
      throw out the initial log file contents.
 
-     @param f The log file's name
+     @param f The log directory's name
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_BYTES);
+        in = segments.input();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -117,11 +197,9 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = segments.length();
+            lastCheckpoint = currentOffset;
         }
     }
 
@@ -133,33 +211,27 @@ public class LogFile {
      the log to disk, and perform a rollback
      @param tid The aborting transaction.
      */
-    public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+    public synchronized void logAbort(TransactionId tid) throws IOException {
+        preAppend();
+        //Debug.log("ABORT");
+        //should we verify that this is a live transaction?
 
-        synchronized (Database.getBufferPool()) {
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
 
-            synchronized (this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
-        }
+        out.writeInt(ABORT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
+        long end = endRecord();
+        tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
+        awaitDurable(end);
     }
 
     /** Write a commit record to disk for the specified tid,
-     and force the log to disk.
+     and force the log to disk.  The force is shared with the other
+     transactions that commit meanwhile.
 
      @param tid The committing transaction.
      */
@@ -168,119 +240,201 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
+        long end = endRecord();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
+        awaitDurable(end);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-     (with provided         before and after images.)
+     (with provided         before and after images.)  Only the byte
+     ranges in which the after image differs from the last logged image
+     of the page are logged, or the whole page if there is none.
      @param tid The transaction performing the write
      @param before The before image of the page
      @param after The after image of the page
 
+     @return the LSN (log offset) of the new record
      @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before, Page after) throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+    public synchronized long logWrite(TransactionId tid, Page before, Page after) throws IOException {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        long lsn = currentOffset;
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           offset of the transaction's previous record
+           changed ranges (see writeUpdate)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        Long prev = tidToLastLogRecord.get(tid.getId());
+        out.writeLong(prev == null ? -1 : prev);
+
+        byte[] afterData = after.getPageData();
+        byte[] logged = loggedImages.get(after.getId());
+        writeUpdate(out, after, logged == null ? before.getPageData() : logged, afterData, logged == null);
+        loggedImages.put(after.getId(), afterData);
+        out.writeLong(currentOffset);
+        endRecord();
+        tidToLastLogRecord.put(tid.getId(), lsn);
+        dirtyPages.putIfAbsent(after.getId(), lsn);
+        maybeCheckpoint();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    void writeUpdate(DataOutput raf, Page after, byte[] beforeData, byte[] afterData, boolean wholePage)
+            throws IOException {
+        PageId pid = after.getId();
 
-        //page data is:
+        //update data is:
         // page class name
         // id class name
         // id class bytes
         // id class data
-        // page class bytes
-        // page class data
+        // page size
+        // number of changed ranges
+        // for each range: offset, length, bytes before, bytes after
+
+        raf.writeUTF(after.getClass().getName());
+        writePageId(raf, pid);
+        raf.writeInt(afterData.length);
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        int i = wholePage ? afterData.length : 0;
+        if (wholePage) {
+            ranges.add(new int[]{0, afterData.length});
+        }
+        while (i < afterData.length) {
+            if (beforeData[i] == afterData[i]) {
+                i++;
+                continue;
+            }
+            // extend the range over short runs of unchanged bytes, which
+            // are cheaper to log than the header of another range
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < afterData.length && i - end < MIN_RANGE_GAP; i++) {
+                if (beforeData[i] != afterData[i]) {
+                    end = i + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        raf.writeInt(ranges.size());
+        for (int[] range : ranges) {
+            raf.writeInt(range[0]);
+            raf.writeInt(range[1] - range[0]);
+            raf.write(beforeData, range[0], range[1] - range[0]);
+            raf.write(afterData, range[0], range[1] - range[0]);
+        }
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Applies the update record whose update data (see writeUpdate)
+     raf is positioned at to the page on disk: the after bytes to redo it,
+     or the before bytes to undo it.  Leaves raf after the update data.
+     @return the id of the page */
+    PageId applyUpdate(DataInput raf, boolean redo) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        byte[] pageData = applyRanges(raf, pid, null, redo);
+        if (pageData != null) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(newPage(pageClassName, pid, pageData));
+        }
+        return pid;
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Applies the ranges of the update data raf is positioned at, from the
+     page size on, to pageData: the after bytes to redo it, or the before
+     bytes to undo it.  If pageData is null, the ranges are applied to the
+     page on disk instead, unless the first covers the whole page.
+     @return pageData, the new page data if it was null, or null if it was
+     null and there are no ranges */
+    byte[] applyRanges(DataInput raf, PageId pid, byte[] pageData, boolean redo) throws IOException {
+        int pageSize = raf.readInt();
+        int numRanges = raf.readInt();
+        for (int i = 0; i < numRanges; i++) {
+            int offset = raf.readInt();
+            int length = raf.readInt();
+            if (pageData == null) {
+                pageData = new byte[pageSize];
+                if (length < pageSize) {
+                    // the record is relative to the page on disk, which the
+                    // previous record of the page brought up to date
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    System.arraycopy(file.readPage(pid).getPageData(), 0, pageData, 0, pageSize);
+                }
+            }
+            if (redo) {
+                raf.skipBytes(length);
+                raf.readFully(pageData, offset, length);
+            } else {
+                raf.readFully(pageData, offset, length);
+                raf.skipBytes(length);
+            }
+        }
+        return pageData;
+    }
 
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        raf.writeUTF(pid.getClass().getName());
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
+    PageId readPageId(DataInput raf) throws IOException {
         String idClassName = raf.readUTF();
-
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i < numIdArgs; i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e) {
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
+        }
+    }
+
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+
+            // pages may have several constructors; use the one that takes
+            // the id and the serialized page
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[0].isAssignableFrom(pid.getClass()) && params[1] == byte[].class) {
+                    pageConst = c;
+                }
+            }
+            if (pageConst == null) {
+                throw new IOException("No (PageId, byte[]) constructor in " + pageClassName);
+            }
+            return (Page) pageConst.newInstance(pid, pageData);
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -294,151 +448,145 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  No pages are
+     written; see the class comment. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> first : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + first.getKey());
+                out.writeLong(first.getKey());
+                out.writeLong(first.getValue());
+                Long last = tidToLastLogRecord.get(first.getKey());
+                out.writeLong(last == null ? first.getValue() : last);
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> dirty : dirtyPages.entrySet()) {
+                writePageId(out, dirty.getKey());
+                out.writeLong(dirty.getValue());
             }
+            out.writeLong(startCpOffset);
+            endRecord();
+            // recovery starts at this checkpoint, or at a record of the
+            // same page before it, so the first record of each page after
+            // it must log the whole page
+            loggedImages.clear();
+
+            //once the CP is durable, make sure the CP location in the
+            // manifest is updated
+            quiesce();
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** Sets how much the log may grow before a checkpoint is taken in the
+     background; 0 turns background checkpoints off. */
+    public synchronized void setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    // starts a background checkpoint if the log has grown enough since
+    // the last one; the caller must hold this
+    private void maybeCheckpoint() {
+        if (checkpointBytes <= 0 || checkpointer != null || currentOffset - lastCheckpoint < checkpointBytes) {
+            return;
+        }
+        checkpointer = new Thread(() -> {
+            try {
+                logCheckpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (LogFile.this) {
+                    checkpointer = null;
+                }
+            }
+        }, "log checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /** Records that a page whose updates were logged has been written to
+     disk, so recovery no longer needs to redo them. */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    /** Records that a page may have been written to disk without logging,
+     so the next update record of the page must log the whole page. */
+    public synchronized void forgetPage(PageId pid) {
+        loggedImages.remove(pid);
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-     consumption */
+     consumption.  Only whole segments before the first record that
+     recovery needs are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = segments.getCheckpoint();
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            writeBuffer();
+            segments.seek(cpLoc);
+            int cpType = in.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = in.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = in.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = in.readLong();
+                long firstLogRecord = in.readLong();
+                in.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid, newStart);
-                    break;
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(in);
+                long recLsn = in.readLong();
+                if (recLsn < minLogRecord) {
+                    minLogRecord = recLsn;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (
-                raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord; LSNs do not
+        // change, so the records after it are left as they are
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " NEW LENGTH: " + (currentOffset - minLogRecord));
+        segments.truncate(minLogRecord);
+        lastCheckpoint = currentOffset;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -449,14 +597,10 @@ public class LogFile {
 
      @param tid The transaction to rollback
      */
-    public void rollback(TransactionId tid) throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                // some code goes here
-                this.rollBack(tid.getId());
-            }
-        }
+    public synchronized void rollback(TransactionId tid) throws NoSuchElementException, IOException {
+        preAppend();
+        // some code goes here
+        this.rollBack(tid.getId());
     }
 
     /**
@@ -466,22 +610,27 @@ public class LogFile {
      * @throws IOException
      */
     private void rollBack(long tid) throws NoSuchElementException, IOException {
-        long firstRecordOffset = this.tidToFirstLogRecord.get(tid);
-        this.raf.seek(this.raf.length() - LONG_SIZE);
-        long curRecordOffset = this.raf.readLong();
-        while (firstRecordOffset < curRecordOffset) {
-            this.raf.seek(curRecordOffset);
-            int recordType = this.raf.readInt();
-            long recordTid = this.raf.readLong();
-            if (recordType == UPDATE_RECORD && recordTid == tid) {
-                Page beforePage = this.readPageData(this.raf);
-                Database.getCatalog().getDatabaseFile(beforePage.getId().getTableId()).writePage(beforePage);
-                Database.getBufferPool().discardPage(beforePage.getId());
+        writeBuffer();
+        Long lastRecordOffset = this.tidToLastLogRecord.get(tid);
+        if (lastRecordOffset == null) {
+            throw new NoSuchElementException("No log records for transaction " + tid);
+        }
+        // follow the chain of the transaction's update records back to
+        // its BEGIN record, undoing them in reverse order; records before
+        // the start of the log belong to finished transactions, and only
+        // the chains of transactions without a BEGIN record reach them
+        long curRecordOffset = lastRecordOffset;
+        while (curRecordOffset >= this.segments.getStart()) {
+            this.segments.seek(curRecordOffset);
+            int recordType = this.in.readInt();
+            this.in.readLong();  // tid
+            if (recordType != UPDATE_RECORD) {
+                break;
             }
-            this.raf.seek(curRecordOffset - LONG_SIZE);  // previous file offset
-            curRecordOffset = this.raf.readLong();
+            curRecordOffset = this.in.readLong();  // previous record of tid
+            PageId pid = this.applyUpdate(this.in, false);
+            Database.getBufferPool().discardPage(pid);
         }
-        this.raf.seek(this.currentOffset);
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -491,7 +640,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            quiesce();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -501,99 +651,284 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
      committed transactions are installed and that the
      updates of uncommitted transactions are not installed.
+     <p>
+     Recovery runs in three passes.  Analysis scans the log forward from
+     the start of redo, rebuilding the transaction table and indexing the
+     updates to apply by page.  Redo applies the updates of each page in
+     log order and writes it once, with the pages partitioned across
+     {@link #setRecoveryThreads recoveryThreads} threads.  Undo then rolls
+     back the transactions that were active at the crash.
      */
-    public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
-
-                // get the last written checkpoint
-                this.currentOffset = this.raf.length();
-                this.raf.seek(0);
-                long lastWrittenCheckpoint = this.raf.readLong();
-
-                // set offset to start of log file if there is no written checkpoint
-                // skip first long size.
-                if (lastWrittenCheckpoint == NO_CHECKPOINT_ID) {
-                    lastWrittenCheckpoint = LONG_SIZE;
-                }
+    public synchronized void recover() throws IOException {
+        recoveryUndecided = false;
+        // some code goes here
+
+        // get the last written checkpoint
+        long lastWrittenCheckpoint = this.segments.getCheckpoint();
+
+        // set offset to start of log if there is no written checkpoint
+        if (lastWrittenCheckpoint == NO_CHECKPOINT_ID) {
+            lastWrittenCheckpoint = this.segments.getStart();
+        }
+
+        // updates to the pages in the dirty page table of the
+        // checkpoint are redone from their recLSN on
+        Map<PageId, Long> recLsns = this.readDirtyPageTable(lastWrittenCheckpoint);
+        long redoStart = lastWrittenCheckpoint;
+        for (long recLsn : recLsns.values()) {
+            redoStart = Math.min(redoStart, recLsn);
+        }
+
+        Set<Long> transactions = new HashSet<>();
+        Map<PageId, PageUpdates> updates = this.analyze(redoStart, lastWrittenCheckpoint, recLsns,
+                transactions);
+        this.redo(updates);
 
-                // read all offsets that submit after last written checkpoint.
-                Stack<Long> offsets = this.getFileOffsets(lastWrittenCheckpoint);
-
-                // redo updates and build the set of loser transactions
-                Set<Long> transactions = new HashSet<>();
-                while (!offsets.empty()) {
-                    long offset = offsets.pop();
-                    this.raf.seek(offset);
-                    int type = this.raf.readInt();
-                    long tid = this.raf.readLong();
-                    switch (type) {
-                    case ABORT_RECORD:
-                        this.rollBack(tid);
-                        transactions.remove(tid);
-                        break;
-                    case COMMIT_RECORD:
-                        this.tidToFirstLogRecord.remove(tid);
-                        transactions.remove(tid);
-                        break;
-                    case BEGIN_RECORD:
-                        this.tidToFirstLogRecord.put(tid, offset);
-                        transactions.add(tid);
-                        break;
-                    case UPDATE_RECORD:  // redo
-                        this.readPageData(this.raf);  // skip before page
-                        Page afterPage = this.readPageData(this.raf);
-                        Database.getCatalog().getDatabaseFile(afterPage.getId().getTableId()).writePage(afterPage);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        // this checkpoint may contain dirty data
-                        // eg: t1 starts and updates data before checkpoint, never commit or abort before crash
-                        int transCount = this.raf.readInt();
-                        for (int i=0; i<transCount; i++) {
-                            tid = this.raf.readLong();
-                            long pos = this.raf.readLong();
-                            transactions.add(tid);
-                            this.tidToFirstLogRecord.put(tid, pos);
-                        }
-                        break;
-                    default:
-                        throw new IOException("Invalid record type");
+        // undo the updates of loser transaction
+        // loser: only appears in BEGIN_RECORD but not in COMMIT_RECORD or ABORT_RECORD
+        for (long tid : transactions) {
+            this.rollBack(tid);
+        }
+    }
+
+    /** The updates recovery applies to one page, in log order: the ranges
+     of each update record (see readRanges), and whether to redo or to
+     undo them. */
+    private static class PageUpdates {
+        String pageClassName;
+        final List<byte[]> ranges = new ArrayList<byte[]>();
+        final List<Boolean> redo = new ArrayList<Boolean>();
+
+        void add(String pageClassName, byte[] ranges, boolean redo) {
+            this.pageClassName = pageClassName;
+            this.ranges.add(ranges);
+            this.redo.add(redo);
+        }
+    }
+
+    /**
+     * The analysis pass of recovery.  Scans the log forward from redoStart,
+     * rebuilding the transaction table and the set of transactions active
+     * at the end of the log, and indexes the updates to apply to each page:
+     * the redo of each update record, and at each ABORT record the undo of
+     * the aborted transaction.  Before the checkpoint only the updates of
+     * pages in its dirty page table are redone, from their recLSN on.  A
+     * record torn by the crash at the end of the log is dropped.
+     *
+     * @param transactions filled with the active transactions
+     * @return the updates of each page, in log order
+     */
+    private Map<PageId, PageUpdates> analyze(long redoStart, long checkpoint, Map<PageId, Long> recLsns,
+            Set<Long> transactions) throws IOException {
+        Map<PageId, PageUpdates> updates = new HashMap<>();
+        long offset = redoStart;
+        while (offset < this.segments.length()) {
+            // read the whole record before acting on it, so that a torn
+            // record is not half applied
+            this.segments.seek(offset);
+            int type;
+            long tid;
+            String pageClassName = null;
+            PageId pid = null;
+            byte[] ranges = null;
+            long[] active = null;
+            try {
+                type = this.in.readInt();
+                tid = this.in.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    this.in.readLong();  // skip previous record
+                    pageClassName = this.in.readUTF();
+                    pid = this.readPageId(this.in);
+                    ranges = this.readRanges();
+                    break;
+                case CHECKPOINT_RECORD:
+                    active = new long[3 * this.in.readInt()];
+                    for (int i = 0; i < active.length; i++) {
+                        active[i] = this.in.readLong();
+                    }
+                    // the dirty page table was read by recover
+                    int dirtyCount = this.in.readInt();
+                    for (int i = 0; i < dirtyCount; i++) {
+                        this.readPageId(this.in);
+                        this.in.readLong();
                     }
+                    break;
+                }
+                if (this.in.readLong() != offset) {
+                    throw new EOFException("torn record");
+                }
+            } catch (EOFException e) {
+                Debug.log("DROPPING TORN LOG RECORD AT " + offset);
+                this.segments.setLength(offset);
+                break;
+            }
+            long next = this.segments.getFilePointer();
+
+            if (offset < checkpoint) {
+                // before the checkpoint, only redo updates to pages
+                // that were dirty at the checkpoint
+                Long recLsn = pid == null ? null : recLsns.get(pid);
+                if (recLsn != null && recLsn <= offset) {
+                    updates.computeIfAbsent(pid, k -> new PageUpdates()).add(pageClassName, ranges, true);
+                }
+                offset = next;
+                continue;
+            }
+            switch (type) {
+            case ABORT_RECORD:
+                this.indexUndo(tid, updates);
+                transactions.remove(tid);
+                this.tidToFirstLogRecord.remove(tid);
+                this.tidToLastLogRecord.remove(tid);
+                break;
+            case COMMIT_RECORD:
+                this.tidToFirstLogRecord.remove(tid);
+                this.tidToLastLogRecord.remove(tid);
+                transactions.remove(tid);
+                break;
+            case BEGIN_RECORD:
+                this.tidToFirstLogRecord.put(tid, offset);
+                this.tidToLastLogRecord.put(tid, offset);
+                transactions.add(tid);
+                break;
+            case UPDATE_RECORD:  // redo
+                updates.computeIfAbsent(pid, k -> new PageUpdates()).add(pageClassName, ranges, true);
+                this.tidToLastLogRecord.put(tid, offset);
+                break;
+            case CHECKPOINT_RECORD:
+                // this checkpoint may contain dirty data
+                // eg: t1 starts and updates data before checkpoint, never commit or abort before crash
+                for (int i = 0; i < active.length; i += 3) {
+                    transactions.add(active[i]);
+                    this.tidToFirstLogRecord.put(active[i], active[i + 1]);
+                    this.tidToLastLogRecord.put(active[i], active[i + 2]);
                 }
+                break;
+            default:
+                throw new IOException("Invalid record type");
+            }
+            offset = next;
+        }
+        this.currentOffset = this.segments.length();
+        return updates;
+    }
+
+    // adds the undo of the update records of tid, newest first, to the
+    // updates of their pages
+    private void indexUndo(long tid, Map<PageId, PageUpdates> updates) throws IOException {
+        Long lastRecordOffset = this.tidToLastLogRecord.get(tid);
+        long curRecordOffset = lastRecordOffset == null ? -1 : lastRecordOffset;
+        while (curRecordOffset >= this.segments.getStart()) {
+            this.segments.seek(curRecordOffset);
+            int recordType = this.in.readInt();
+            this.in.readLong();  // tid
+            if (recordType != UPDATE_RECORD) {
+                break;
+            }
+            curRecordOffset = this.in.readLong();  // previous record of tid
+            String pageClassName = this.in.readUTF();
+            PageId pid = this.readPageId(this.in);
+            updates.computeIfAbsent(pid, k -> new PageUpdates()).add(pageClassName, this.readRanges(), false);
+        }
+    }
+
+    // reads the update data that in is positioned at, from the page size on
+    // (see writeUpdate)
+    private byte[] readRanges() throws IOException {
+        long start = this.segments.getFilePointer();
+        this.in.readInt();  // page size
+        int numRanges = this.in.readInt();
+        for (int i = 0; i < numRanges; i++) {
+            this.in.readInt();  // offset
+            this.in.skipBytes(2 * this.in.readInt());
+        }
+        byte[] ranges = new byte[(int) (this.segments.getFilePointer() - start)];
+        this.segments.seek(start);
+        this.in.readFully(ranges);
+        return ranges;
+    }
+
+    /**
+     * The redo pass of recovery.  Applies the updates of each page in log
+     * order and writes the page once; the pages are partitioned by id
+     * across threads, so the updates of a page are applied by one of them.
+     */
+    private void redo(Map<PageId, PageUpdates> updates) throws IOException {
+        int threads = Math.max(1, Math.min(this.recoveryThreads, updates.size()));
+        List<List<Map.Entry<PageId, PageUpdates>>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, PageUpdates> page : updates.entrySet()) {
+            partitions.get(Math.floorMod(page.getKey().hashCode(), threads)).add(page);
+        }
 
-                // undo the updates of loser transaction
-                // loser: only appears in BEGIN_RECORD but not in COMMIT_RECORD or ABORT_RECORD
-                for (long tid : transactions) {
-                    this.rollBack(tid);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (List<Map.Entry<PageId, PageUpdates>> partition : partitions) {
+            workers.add(new Thread(() -> {
+                try {
+                    for (Map.Entry<PageId, PageUpdates> page : partition) {
+                        this.redoPage(page.getKey(), page.getValue());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
                 }
+            }, "recovery redo"));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
             }
         }
+        if (failure.get() != null) {
+            throw new IOException("redo failed", failure.get());
+        }
+    }
+
+    // applies the updates of one page in order and writes it
+    private void redoPage(PageId pid, PageUpdates updates) throws IOException {
+        byte[] pageData = null;
+        for (int i = 0; i < updates.ranges.size(); i++) {
+            DataInput ranges = new DataInputStream(new ByteArrayInputStream(updates.ranges.get(i)));
+            pageData = this.applyRanges(ranges, pid, pageData, updates.redo.get(i));
+        }
+        if (pageData != null) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(this.newPage(updates.pageClassName, pid, pageData));
+        }
     }
 
     /**
-     * Since it reads from back to front, we use stack to store all offset,
-     * so that all offsets will be processed from front to back later.
-     * Also include the offset of last written checkpoint because it may contains dirty pages
+     * Reads the dirty page table of the checkpoint record at cpOffset.
      *
-     * @param start offset of last written checkpoint or start of log file (not include first long size which indicate checkpoint)
-     * @return
-     * @throws IOException
+     * @return the recLSN of each dirty page, or an empty map if cpOffset is
+     * not a checkpoint record
      */
-    private Stack<Long> getFileOffsets(long start) throws IOException {
-        this.raf.seek(this.raf.length() - LONG_SIZE);
-        long offset = this.raf.readLong();
-        Stack<Long> res = new Stack<>();
-        while (offset >= start) {
-            res.push(offset);
-            if (offset <= LONG_SIZE) {
-                break;
-            }
-            this.raf.seek(offset - LONG_SIZE);
-            offset = this.raf.readLong();
+    private Map<PageId, Long> readDirtyPageTable(long cpOffset) throws IOException {
+        Map<PageId, Long> recLsns = new HashMap<>();
+        if (cpOffset >= this.segments.length()) {
+            return recLsns;
+        }
+        this.segments.seek(cpOffset);
+        if (this.in.readInt() != CHECKPOINT_RECORD) {
+            return recLsns;
         }
-        return res;
+        this.in.readLong();  // no tid
+        int transCount = this.in.readInt();
+        this.in.skipBytes(transCount * 3 * LONG_SIZE);
+        int dirtyCount = this.in.readInt();
+        for (int i = 0; i < dirtyCount; i++) {
+            PageId pid = this.readPageId(this.in);
+            recLsns.put(pid, this.in.readLong());
+        }
+        return recLsns;
     }
 
     /** Print out a human readable represenation of the log */
@@ -601,8 +936,150 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Force the log to disk, waiting until all records appended so far
+     are durable.  Concurrent callers share the same force. */
     public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        awaitDurable(appended);
+    }
+
+    /** @return the number of bytes appended to the log since it was opened,
+     including any that were truncated since */
+    public synchronized long getTotalBytes() {
+        return appended;
+    }
+
+    /** Sets how many threads the redo pass of recovery runs in. */
+    public synchronized void setRecoveryThreads(int recoveryThreads) {
+        this.recoveryThreads = recoveryThreads;
+    }
+
+    /** Sets the size of the segment files started from now on. */
+    public synchronized void setSegmentBytes(int segmentBytes) {
+        segments.setSegmentBytes(segmentBytes);
+    }
+
+    /** @return the number of segment files the log is kept in */
+    public synchronized int getNumSegments() {
+        return segments.numSegments();
+    }
+
+    /** @return the number of times the log was forced to disk, for tests */
+    public synchronized int getNumForces() {
+        return forces;
+    }
+
+    // ends the record just written to the buffer and returns the number of
+    // bytes appended through its end, which is what awaitDurable takes
+    private long endRecord() {
+        int size = buffer.size() - recorded;
+        recorded = buffer.size();
+        currentOffset += size;
+        appended += size;
+        return appended;
+    }
+
+    // writes the buffered records to the end of the log, without forcing
+    private void writeBuffer() throws IOException {
+        if (buffer.size() > 0) {
+            segments.append(buffer.toByteArray());
+            buffer.reset();
+            recorded = 0;
+        }
+    }
+
+    // waits until the first target bytes appended are durable, starting the
+    // log writer if it is not running; the caller must hold this
+    private void awaitDurable(long target) throws IOException {
+        if (target > requested) {
+            requested = target;
+        }
+        if (writer == null) {
+            writer = new Thread(this::runWriter, "log writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            notifyAll();
+        }
+        while (durable < target) {
+            if (writerFailure != null) {
+                throw new IOException("forcing the log failed", writerFailure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while forcing the log");
+            }
+        }
+    }
+
+    // makes everything appended durable, after waiting for a force the
+    // writer is running; the caller must hold this. The buffer is written
+    // out after the wait: others append while we wait, and their records
+    // would otherwise stay in the buffer, marked durable, until after a
+    // truncation had moved the end of the log
+    private void quiesce() throws IOException {
+        while (forcing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while forcing the log");
+            }
+        }
+        writeBuffer();
+        segments.force();
+        forces++;
+        durable = appended;
+        notifyAll();
+    }
+
+    // the log writer: writes out the buffer and forces it, without holding
+    // this during the force, while there are callers waiting for it
+    private void runWriter() {
+        while (true) {
+            List<FileChannel> channels;
+            long target;
+            synchronized (this) {
+                if (requested <= durable) {
+                    try {
+                        wait(WRITER_IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        // exit below unless there is work
+                    }
+                }
+                if (requested <= durable || writerFailure != null) {
+                    writer = null;
+                    return;
+                }
+                try {
+                    writeBuffer();
+                } catch (IOException e) {
+                    writerFailure = e;
+                    notifyAll();
+                    continue;
+                }
+                target = appended;
+                channels = segments.takeUnforced();
+                forcing = true;
+            }
+            IOException failure = null;
+            try {
+                for (FileChannel channel : channels) {
+                    channel.force(true);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                forcing = false;
+                forces++;
+                if (failure != null) {
+                    writerFailure = failure;
+                } else if (target > durable) {
+                    durable = target;
+                }
+                notifyAll();
+            }
+        }
     }
 
 }
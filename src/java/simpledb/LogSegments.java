@@ -0,0 +1,336 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the bytes of the log in a directory of segment files,
+ * so that the head of the log can be dropped by deleting files instead of
+ * copying the tail of the log to a new file.
+ * <p>
+ * Bytes are addressed by their LSN, their offset from the beginning of the
+ * log, which does not change when the log is truncated.  Each segment file
+ * is named by the LSN of its first byte and holds the bytes up to the next
+ * segment; appends fill the last segment up to the segment size and then
+ * start a new one.  A manifest file records the LSN the log starts at and
+ * the LSN of the last checkpoint record, or -1 if there is none; it is
+ * replaced atomically by writing a new file and renaming it over the old
+ * one.
+ * <p>
+ * Not thread safe; LogFile guards it with its monitor, except for forcing
+ * the channels returned by {@link #takeUnforced}.
+ *
+ * @see LogFile
+ */
+public class LogSegments {
+
+    /** Default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+    private static final String MANIFEST = "manifest";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /** How much of the log the input reads at a time. */
+    private static final int READ_BUFFER_BYTES = 16 << 10;
+
+    private final File dir;
+    private int segmentBytes;
+    /** The open segment files, by the LSN of their first byte. */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    /** Segments written since they were last forced. */
+    private final Set<RandomAccessFile> unforced = new LinkedHashSet<RandomAccessFile>();
+    private long start;
+    private long checkpoint;
+    private long end;
+    private long position;
+    private final DataInputStream in;
+    /** Bytes of the log from bufferStart on, as read by the input. */
+    private final byte[] buffer = new byte[READ_BUFFER_BYTES];
+    private long bufferStart;
+    private int bufferLength;
+
+    /**
+     * Opens the log in dir, creating it if it does not exist.  A log file
+     * written by an older version, which kept the log in one file, is
+     * discarded.
+     *
+     * @param dir the directory of the segments and the manifest
+     * @param segmentBytes the size of segment files
+     */
+    public LogSegments(File dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.in = new DataInputStream(new SegmentInputStream());
+        if (dir.isFile() && !dir.delete()) {
+            throw new IOException("Cannot delete old log file " + dir);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create log directory " + dir);
+        }
+
+        start = 0;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            try (DataInputStream manifestIn = new DataInputStream(new FileInputStream(manifest))) {
+                start = manifestIn.readLong();
+                checkpoint = manifestIn.readLong();
+            }
+        }
+
+        File[] files = dir.listFiles();
+        List<Long> lsns = new ArrayList<Long>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                lsns.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(lsns);
+        for (int i = 0; i < lsns.size(); i++) {
+            // segments entirely before the start were left behind by a
+            // truncation that did not finish
+            if (i + 1 < lsns.size() && lsns.get(i + 1) <= start) {
+                Files.delete(segmentFile(lsns.get(i)).toPath());
+                continue;
+            }
+            segments.put(lsns.get(i), new RandomAccessFile(segmentFile(lsns.get(i)), "rw"));
+        }
+        end = segments.isEmpty() ? start : segments.lastKey() + segments.lastEntry().getValue().length();
+    }
+
+    private File segmentFile(long lsn) {
+        return new File(dir, String.format("%020d%s", lsn, SEGMENT_SUFFIX));
+    }
+
+    /** Sets the size of the segments started from now on. */
+    public void setSegmentBytes(int segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    /** @return the number of segment files */
+    public int numSegments() {
+        return segments.size();
+    }
+
+    /** @return the LSN of the first byte of the log that was not truncated */
+    public long getStart() {
+        return start;
+    }
+
+    /** @return the LSN of the last checkpoint record, or -1 if there is none */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** @return the LSN just past the last byte of the log */
+    public long length() {
+        return end;
+    }
+
+    /** Deletes all segments and starts an empty log at LSN 0. */
+    public void reset() throws IOException {
+        for (long lsn : new ArrayList<Long>(segments.keySet())) {
+            deleteSegment(lsn);
+        }
+        unforced.clear();
+        end = 0;
+        bufferLength = 0;
+        writeManifest(0, LogFile.NO_CHECKPOINT_ID);
+    }
+
+    /**
+     * Drops the end of the log from lsn on, such as a record that was torn
+     * by a crash.
+     */
+    public void setLength(long lsn) throws IOException {
+        if (lsn >= end) {
+            return;
+        }
+        while (!segments.isEmpty() && segments.lastKey() >= lsn && segments.lastKey() > start) {
+            deleteSegment(segments.lastKey());
+        }
+        Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+        if (last != null) {
+            last.getValue().setLength(lsn - last.getKey());
+            last.getValue().getChannel().force(true);
+        }
+        end = lsn;
+        bufferLength = 0;
+    }
+
+    /** Appends bytes at the end of the log, without forcing them. */
+    public void append(byte[] bytes) throws IOException {
+        int written = 0;
+        while (written < bytes.length) {
+            Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+            if (last == null || end - last.getKey() >= segmentBytes) {
+                RandomAccessFile segment = new RandomAccessFile(segmentFile(end), "rw");
+                segment.setLength(0);
+                segments.put(end, segment);
+                // the new file must survive a crash along with its data
+                syncDirectory();
+                last = segments.lastEntry();
+            }
+            RandomAccessFile segment = last.getValue();
+            int n = (int) Math.min(bytes.length - written, segmentBytes - (end - last.getKey()));
+            segment.seek(end - last.getKey());
+            segment.write(bytes, written, n);
+            unforced.add(segment);
+            written += n;
+            end += n;
+        }
+    }
+
+    /**
+     * Returns the channels of the segments written since they were last
+     * forced; the caller must force them before anything written so far is
+     * durable.
+     */
+    public List<FileChannel> takeUnforced() {
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        for (RandomAccessFile segment : unforced) {
+            channels.add(segment.getChannel());
+        }
+        unforced.clear();
+        return channels;
+    }
+
+    /** Forces everything appended so far to disk. */
+    public void force() throws IOException {
+        for (FileChannel channel : takeUnforced()) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Records a checkpoint record in the manifest.  The record must be
+     * durable already.
+     */
+    public void setCheckpoint(long lsn) throws IOException {
+        writeManifest(start, lsn);
+    }
+
+    /**
+     * Drops the log before lsn, deleting the segments that end at or before
+     * it; the segment that lsn falls in is kept whole.
+     */
+    public void truncate(long lsn) throws IOException {
+        if (lsn <= start) {
+            return;
+        }
+        // record the new start first, so that a crash in between only
+        // leaves segments behind that the next open deletes
+        writeManifest(lsn, checkpoint);
+        Long next;
+        while (!segments.isEmpty() && (next = segments.higherKey(segments.firstKey())) != null && next <= lsn) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    public void close() throws IOException {
+        for (RandomAccessFile segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * @return the input that reads the log at the position set by
+     *         {@link #seek}; reads past the end of the log throw EOFException
+     */
+    public DataInputStream input() {
+        return in;
+    }
+
+    /** Moves the position the input reads at. */
+    public void seek(long lsn) {
+        position = lsn;
+    }
+
+    /** @return the LSN the input reads at next */
+    public long getFilePointer() {
+        return position;
+    }
+
+    private void deleteSegment(long lsn) throws IOException {
+        RandomAccessFile segment = segments.remove(lsn);
+        unforced.remove(segment);
+        segment.close();
+        Files.delete(segmentFile(lsn).toPath());
+    }
+
+    private void writeManifest(long start, long checkpoint) throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (FileOutputStream manifestOut = new FileOutputStream(tmp)) {
+            DataOutputStream data = new DataOutputStream(manifestOut);
+            data.writeLong(start);
+            data.writeLong(checkpoint);
+            data.flush();
+            manifestOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        this.start = start;
+        this.checkpoint = checkpoint;
+    }
+
+    // makes the files created, renamed and deleted in dir durable
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /** Reads the segments from the position of the log. */
+    private class SegmentInputStream extends InputStream {
+
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                fill();
+            }
+            int n = (int) Math.min(len, bufferStart + bufferLength - position);
+            System.arraycopy(buffer, (int) (position - bufferStart), b, off, n);
+            position += n;
+            return n;
+        }
+
+        // reads the buffer from the position to the end of its segment at most
+        private void fill() throws IOException {
+            Map.Entry<Long, RandomAccessFile> segment = segments.floorEntry(position);
+            if (segment == null || position < start) {
+                throw new IOException("LSN " + position + " was truncated from the log");
+            }
+            Long next = segments.higherKey(segment.getKey());
+            long segmentEnd = next == null ? end : next;
+            int n = (int) Math.min(buffer.length, segmentEnd - position);
+            segment.getValue().seek(position - segment.getKey());
+            segment.getValue().readFully(buffer, 0, n);
+            bufferStart = position;
+            bufferLength = n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+}
@@ -14,8 +14,8 @@ import java.util.NoSuchElementException;
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
  * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * LogicalPlans can only represent queries with one group by field, though
+ * any number of aggregates.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -23,6 +23,9 @@ import java.util.NoSuchElementException;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /** The limit of a query without a LIMIT clause. */
+    public static final int NO_LIMIT = -1;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -32,10 +35,11 @@ public class LogicalPlan {
     private Vector<LogicalSelectListNode> selectList;
     private String groupByField = null;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<LogicalSelectListNode> aggregates = new Vector<LogicalSelectListNode>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = NO_LIMIT;
     private String query;
     //    private Query owner;
 
@@ -283,27 +287,47 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query.  SimpleDb supports several aggregates, which are computed
+     * together, but only a single GROUP BY field.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
      * @param gfield the field to group by
-     * @throws ParsingException
+     * @throws ParsingException if gfield differs from the GROUP BY field of
+     *                          an aggregate added before
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield = disambiguateName(afield);
         if (gfield != null)
             gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
+        if (hasAgg && (gfield == null ? groupByField != null : !gfield.equals(groupByField))) {
+            throw new ParsingException("Aggregates with different GROUP BY fields not supported");
+        }
+        if (aggregateIndex(op, afield) == -1) {
+            aggregates.addElement(new LogicalSelectListNode(op, afield));
+        }
         groupByField = gfield;
         hasAgg = true;
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * @return the position of the aggregate of op over the field afield
+     *         among the aggregates of the query, or -1 if it is not one of them
+     */
+    private int aggregateIndex(String op, String afield) throws ParsingException {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode agg = aggregates.elementAt(i);
+            if (getAggOp(agg.aggOp) == getAggOp(op) && agg.fname.equals(afield)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field.  Tuples are ordered
+     * by the fields in the order they are added: by the first, then by the second among tuples equal
+     * in the first, and so on.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -311,11 +335,22 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /**
+     * Limit the query to its first n tuples, or to as many as there are if n
+     * is {@link #NO_LIMIT}.  With an ORDER BY, the plan keeps only the first
+     * n tuples in order instead of sorting them all.
+     *
+     * @param n the number of tuples to return at most
+     */
+    public void setLimit(int n) {
+        limit = n;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -509,7 +544,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg == -1) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list is not computed");
+                }
+                outFields.add((groupByField != null ? 1 : 0) + agg);
                 TupleDesc td = node.getTupleDesc();
                 //                int  id;
                 try {
@@ -556,10 +595,15 @@ public class LogicalPlan {
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
+            int[] aggFields = new int[aggregates.size()];
+            Aggregator.Op[] aggOps = new Aggregator.Op[aggregates.size()];
             try {
-                aggNode = new Aggregate(node, td.fieldNameToIndex(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField),
-                        getAggOp(aggOp));
+                for (int i = 0; i < aggregates.size(); i++) {
+                    aggFields[i] = td.fieldNameToIndex(aggregates.elementAt(i).fname);
+                    aggOps[i] = getAggOp(aggregates.elementAt(i).aggOp);
+                }
+                aggNode = new Aggregate(node, aggFields, aggOps,
+                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -569,7 +613,19 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                ascs[i] = oByAscs.elementAt(i);
+            }
+            if (limit == NO_LIMIT) {
+                node = new OrderBy(fields, ascs, node);
+            } else {
+                node = new TopN(fields, ascs, limit, node);
+            }
+        } else if (limit != NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * LoserTree merges sorted inputs into one sorted stream. It is a tournament
+ * tree whose internal nodes hold the input that lost the match played there,
+ * so that replacing the winner takes one comparison per level of the tree,
+ * log2(k) for k inputs, against the losers on its path to the root.
+ * <p>
+ * Tuples that compare equal come out in the order of their inputs, so merging
+ * runs in the order they were sorted keeps a stable sort stable.
+ *
+ * @see OrderBy
+ */
+public class LoserTree {
+
+    private final OpIterator[] inputs;
+    private final Comparator<Tuple> comparator;
+    /** The next tuple of each input, or null if it is exhausted. */
+    private final Tuple[] heads;
+    /**
+     * The loser of the match at each internal node 1..k-1, and the overall
+     * winner at 0; input i is the leaf at node k + i.
+     */
+    private final int[] tree;
+
+    /**
+     * @param inputs     the inputs to merge, each open and sorted by comparator
+     * @param comparator the order of the inputs
+     */
+    public LoserTree(List<OpIterator> inputs, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        int k = inputs.size();
+        this.inputs = inputs.toArray(new OpIterator[k]);
+        this.comparator = comparator;
+        this.heads = new Tuple[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++) {
+            advance(i);
+        }
+        if (k == 0) {
+            return;
+        }
+
+        // play the matches bottom up, keeping the winner of each node
+        int[] winners = new int[2 * k];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+        }
+        for (int node = k - 1; node >= 1; node--) {
+            int a = winners[2 * node];
+            int b = winners[2 * node + 1];
+            if (beats(a, b)) {
+                winners[node] = a;
+                this.tree[node] = b;
+            } else {
+                winners[node] = b;
+                this.tree[node] = a;
+            }
+        }
+        this.tree[0] = k == 1 ? 0 : winners[1];
+    }
+
+    public boolean hasNext() {
+        return this.heads.length > 0 && this.heads[this.tree[0]] != null;
+    }
+
+    /**
+     * Returns the least tuple of all inputs and replaces it with the next
+     * tuple of its input.
+     */
+    public Tuple next() throws DbException, TransactionAbortedException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int winner = this.tree[0];
+        Tuple next = this.heads[winner];
+        advance(winner);
+        // replay the matches on the path of the winner's leaf to the root
+        for (int node = (winner + this.heads.length) / 2; node >= 1; node /= 2) {
+            if (beats(this.tree[node], winner)) {
+                int loser = winner;
+                winner = this.tree[node];
+                this.tree[node] = loser;
+            }
+        }
+        this.tree[0] = winner;
+        return next;
+    }
+
+    private void advance(int input) throws DbException, TransactionAbortedException {
+        this.heads[input] = this.inputs[input].hasNext() ? this.inputs[input].next() : null;
+    }
+
+    // whether input a comes before input b; exhausted inputs come last
+    private boolean beats(int a, int b) {
+        if (this.heads[a] == null) {
+            return false;
+        }
+        if (this.heads[b] == null) {
+            return true;
+        }
+        int c = this.comparator.compare(this.heads[a], this.heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
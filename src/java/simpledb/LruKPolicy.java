@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page
+ * whose K-th most recent reference lies furthest in the past. Pages that
+ * have been referenced fewer than K times have an infinite backward
+ * K-distance and are evicted first, least recently used first.
+ * <p>
+ * Pages with fewer than K references live in an insertion-ordered set, so
+ * bookkeeping for them is O(1). Pages with a full history are ordered by
+ * their K-th most recent reference in a tree, which costs O(log n) per hit.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    private final Map<PageId, long[]> history;
+    private final LinkedHashSet<PageId> cold;
+    private final TreeMap<Long, PageId> hot;
+
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be positive: " + k);
+        }
+        this.k = k;
+        this.clock = 0;
+        this.history = new HashMap<>(capacity);
+        this.cold = new LinkedHashSet<>();
+        this.hot = new TreeMap<>();
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (this.history.containsKey(pid)) {
+            this.pageAccessed(pid);
+            return;
+        }
+        // history[0] is the most recent reference, 0 marks an empty entry
+        long[] refs = new long[this.k];
+        refs[0] = ++this.clock;
+        this.history.put(pid, refs);
+        this.track(pid, refs);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        long[] refs = this.history.get(pid);
+        if (refs == null) {
+            return;
+        }
+        this.untrack(pid, refs);
+        System.arraycopy(refs, 0, refs, 1, this.k - 1);
+        refs[0] = ++this.clock;
+        this.track(pid, refs);
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        long[] refs = this.history.remove(pid);
+        if (refs != null) {
+            this.untrack(pid, refs);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(EvictionFilter filter) {
+        for (PageId pid : this.cold) {
+            if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        for (PageId pid : this.hot.values()) {
+            if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return this.history.size();
+    }
+
+    private void track(PageId pid, long[] refs) {
+        long kth = refs[this.k - 1];
+        if (kth == 0) {
+            this.cold.add(pid);
+        } else {
+            this.hot.put(kth, pid);
+        }
+    }
+
+    private void untrack(PageId pid, long[] refs) {
+        long kth = refs[this.k - 1];
+        if (kth == 0) {
+            this.cold.remove(pid);
+        } else {
+            this.hot.remove(kth);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read from a read-only memory
+ * mapping of the data file instead of with explicit reads. HeapPages are
+ * parsed straight out of the mapped slice, so a page is never copied into a
+ * temporary array, and the OS page cache holds the file data instead of a
+ * second copy in the JVM heap. It is meant for tables that are read far
+ * more often than written.
+ * <p>
+ * Writes still go through the file channel, and the mapping sees them. The
+ * file is remapped when a page beyond the current mapping is read, e.g.
+ * after an insert appended a page.
+ *
+ * @see HeapFile
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /**
+     * Mapping of the first mappedPages pages of the file, or null if the file
+     * has not been mapped yet.
+     */
+    private volatile ByteBuffer mapping;
+    private volatile int mappedPages;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.mapping = null;
+        this.mappedPages = 0;
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid) {
+        int pgNo = pid.getPageNumber();
+        if (pgNo < 0 || pgNo >= this.numPages()) {
+            throw new NoSuchElementException(String.format("Page number: %d doesn't exist", pgNo));
+        }
+        // read the page count first: remap publishes the mapping before it
+        boolean mapped = pgNo < this.mappedPages;
+        ByteBuffer map = this.mapping;
+        if (!mapped) {
+            map = this.remap(pgNo);
+            if (map == null) {
+                // the last page is incomplete and cannot be mapped
+                return super.readPage(pid);
+            }
+        }
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer slice = map.duplicate();
+        slice.position(pgNo * pageSize);
+        slice.limit(pgNo * pageSize + pageSize);
+        try {
+            return new HeapPage((HeapPageId) pid, slice.slice());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Maps all complete pages of the file if page pgNo is not mapped yet.
+     *
+     * @return a mapping that covers page pgNo, or null if there is none
+     */
+    private synchronized ByteBuffer remap(int pgNo) {
+        if (pgNo < this.mappedPages) {
+            return this.mapping;
+        }
+        int pageSize = BufferPool.getPageSize();
+        try {
+            long size = this.getChannel().size();
+            int pages = (int) (size / pageSize);
+            if (pgNo >= pages) {
+                return null;
+            }
+            this.mapping = this.getChannel().map((long) pages * pageSize);
+            this.mappedPages = pages;
+            return this.mapping;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Mapped pages are read ahead by the OS, so there is nothing to prepare.
+     */
+    @Override
+    public void prepareRead(List<PageId> pids) {
+    }
+}
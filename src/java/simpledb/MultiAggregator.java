@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Computes several aggregates, each an operator over a field, grouped by
+ * one field, in one pass over the tuples. All aggregates share one group
+ * index, so each tuple is looked up once; aggregates over the same field
+ * also share its running state, which is updated once per tuple however
+ * many operators are computed from it.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The running state an aggregator keeps for each group of a shared
+     * {@link GroupIndex}.
+     */
+    interface GroupState {
+        /** Merges tup into the state of group. */
+        void merge(int group, Tuple tup);
+
+        /** @return the aggregate op computes from the state of group */
+        int value(int group, Op op);
+    }
+
+    private final int groupByField;
+    private final Type groupByFieldType;
+    private final Op[] ops;
+    private final GroupIndex groups;
+    /** The state of each aggregated field, each merged once per tuple. */
+    private final List<GroupState> states = new ArrayList<GroupState>();
+    /** The state each aggregate is computed from. */
+    private final GroupState[] aggregateStates;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield     the 0-based index of the group-by field in the tuple, or
+     *                    NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null
+     *                    if there is no grouping
+     * @param afields     the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes the types of the aggregate fields
+     * @param whats       the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException if an operator other than COUNT is over
+     *                                  a string field
+     */
+    public MultiAggregator(int gbfield, Type gbfieldtype, int[] afields, Type[] afieldtypes, Op[] whats) {
+        this.groupByField = gbfield;
+        this.groupByFieldType = gbfieldtype;
+        this.ops = whats.clone();
+        this.groups = new GroupIndex(gbfield, gbfieldtype);
+        this.aggregateStates = new GroupState[afields.length];
+        Map<Integer, GroupState> fieldStates = new HashMap<Integer, GroupState>();
+        for (int i = 0; i < afields.length; i++) {
+            boolean strings = Type.STRING_TYPE.equals(afieldtypes[i]);
+            if (strings && !Op.COUNT.equals(whats[i])) {
+                throw new IllegalArgumentException("Op should be COUNT");
+            }
+            GroupState state = fieldStates.get(afields[i]);
+            if (state == null) {
+                state = strings ? new StringAggregator(gbfield, gbfieldtype, afields[i], whats[i], this.groups)
+                        : new IntegerAggregator(gbfield, gbfieldtype, afields[i], whats[i], this.groups);
+                fieldStates.put(afields[i], state);
+                this.states.add(state);
+            }
+            this.aggregateStates[i] = state;
+        }
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        mergeTupleIntoGroup(tup, Integer.MAX_VALUE);
+    }
+
+    public boolean mergeTupleIntoGroup(Tuple tup, int maxGroups) {
+        int group = this.groups.groupOf(tup, maxGroups);
+        if (group == -1) {
+            return false;
+        }
+        for (GroupState state : this.states) {
+            state.merge(group, tup);
+        }
+        return true;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by value, if using
+     * group, followed by the value of each aggregate in the order given
+     * to the constructor
+     */
+    public OpIterator iterator() {
+        if (this.groups.numGroups() == 0) {
+            throw new NoSuchElementException("No tuple can be processed");
+        }
+        int first = this.groupByField == NO_GROUPING ? 0 : 1;
+        Type[] types = new Type[first + this.ops.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = Type.INT_TYPE;
+        }
+        if (first == 1) {
+            types[0] = this.groupByFieldType;
+        }
+        TupleDesc td = new TupleDesc(types);
+        List<Tuple> result = new ArrayList<>();
+        for (int group = 0; group < this.groups.numGroups(); group++) {
+            Tuple tuple = new Tuple(td);
+            if (first == 1) {
+                tuple.setField(0, this.groups.value(group));
+            }
+            for (int i = 0; i < this.ops.length; i++) {
+                tuple.setField(first + i, new IntField(this.aggregateStates[i].value(group, this.ops[i])));
+            }
+            result.add(tuple);
+        }
+        return new TupleIterator(td, result);
+    }
+}
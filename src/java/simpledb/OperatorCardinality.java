@@ -37,6 +37,11 @@ public class OperatorCardinality {
                     childC = tableStats.get(((SeqScan) children[0]).getTableName()).estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            } else if (o instanceof Limit) {
+                childC = Math.min(childC, ((Limit) o).getLimit());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -1,20 +1,45 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted in memory up to a memory budget. A child with more
+ * tuples is sorted externally: each budget's worth of tuples is sorted and
+ * written to a temporary heap file as a run, and the runs and the last
+ * tuples, which stay in memory, are merged with a {@link LoserTree}. If there
+ * are too many runs to read a page of each at once, groups of runs are merged
+ * into longer runs first. The runs keep the record ids of their tuples, so
+ * that the tuples returned have the record ids of the child's tuples whether
+ * or not they went to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory the tuples an OrderBy sorts at once may take. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /**
+     * Estimated memory a tuple takes besides its fields: the tuple, its
+     * field array and its slot in the list being sorted.
+     */
+    private static final int TUPLE_BYTES = 64;
+    /** Estimated memory a field takes besides its value. */
+    private static final int FIELD_BYTES = 16;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    /** The sorted runs on disk, in the order their tuples were read. */
+    private List<SpillFile> runs = new ArrayList<SpillFile>();
+    private int numRuns;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private LoserTree merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -24,23 +49,75 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting
+     * by several fields: tuples equal in the first are sorted by the second,
+     * and so on.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           whether the sort order of each field is ascending.
+     * @param child         the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("Need an order for each of at least one field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
     }
 
     public boolean isASC() {
-        return this.asc;
+        return this.asc[0];
     }
 
     public int getOrderByField() {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
 
     public String getOrderFieldName() {
-        return this.orderByFieldName;
+        return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return the number of fields the sort is applied to
+     */
+    public int numOrderByFields() {
+        return this.orderByFields.length;
+    }
+
+    /**
+     * @return the i-th field the sort is applied to
+     */
+    public int getOrderByField(int i) {
+        return this.orderByFields[i];
+    }
+
+    /**
+     * @return whether the sort order of the i-th field is ascending
+     */
+    public boolean isASC(int i) {
+        return this.asc[i];
+    }
+
+    /**
+     * Sets how much memory the tuples sorted at once may take before they
+     * are written to disk as a sorted run. Takes effect on the next open.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk since the last open,
+     * not counting the runs merging them produced
+     */
+    public int numRuns() {
+        return this.numRuns;
     }
 
     public TupleDesc getTupleDesc() {
@@ -49,21 +126,124 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        childTups.clear();
+        deleteRuns();
+        numRuns = 0;
+        Comparator<Tuple> comparator = new TupleComparator(orderByFields, asc);
+        long tupleBytes = TUPLE_BYTES + FIELD_BYTES * td.numFields() + td.getSize();
+        long maxTuples = Math.max(1, memoryBudget / tupleBytes);
+        try {
+            // load the tuples in a collection as long as they fit, and sort it
+            while (child.hasNext()) {
+                if (childTups.size() >= maxTuples) {
+                    Collections.sort(childTups, comparator);
+                    runs.add(writeRun(childTups));
+                    childTups.clear();
+                    numRuns++;
+                }
+                childTups.add((Tuple) child.next());
+            }
+            Collections.sort(childTups, comparator);
+            mergeRuns(comparator);
+        } catch (IOException e) {
+            throw new DbException("Cannot write sorted run: " + e);
+        }
+        startOutput();
         super.open();
     }
 
+    private SpillFile writeRun(List<Tuple> tuples) throws IOException, DbException {
+        int pageIdInts = 0;
+        for (Tuple t : tuples) {
+            pageIdInts = Math.max(pageIdInts, SpillFile.pageIdInts(t));
+        }
+        SpillFile run = new SpillFile(td, pageIdInts);
+        for (Tuple t : tuples) {
+            run.add(t);
+        }
+        return run;
+    }
+
+    /**
+     * Merges groups of runs into longer runs until a page of each run and
+     * the tuples in memory fit in the memory budget together.
+     */
+    private void mergeRuns(Comparator<Tuple> comparator)
+            throws IOException, DbException, TransactionAbortedException {
+        int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memoryBudget / (2 * BufferPool.getPageSize())));
+        while (runs.size() + 1 > fanIn) {
+            List<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                List<OpIterator> inputs = new ArrayList<OpIterator>();
+                int pageIdInts = 0;
+                for (SpillFile run : group) {
+                    inputs.add(open(run));
+                    pageIdInts = Math.max(pageIdInts, run.pageIdInts());
+                }
+                LoserTree tree = new LoserTree(inputs, comparator);
+                SpillFile run = new SpillFile(td, pageIdInts);
+                while (tree.hasNext()) {
+                    run.add(tree.next());
+                }
+                for (SpillFile input : group) {
+                    input.delete();
+                }
+                merged.add(run);
+            }
+            runs = merged;
+        }
+    }
+
+    private OpIterator open(SpillFile run) throws IOException, DbException, TransactionAbortedException {
+        OpIterator input = run.iterator();
+        input.open();
+        return input;
+    }
+
+    // starts returning the tuples from the beginning
+    private void startOutput() throws DbException, TransactionAbortedException {
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            merge = null;
+            return;
+        }
+        List<OpIterator> inputs = new ArrayList<OpIterator>();
+        try {
+            for (SpillFile run : runs) {
+                inputs.add(open(run));
+            }
+        } catch (IOException e) {
+            throw new DbException("Cannot read sorted run: " + e);
+        }
+        // the tuples in memory were read last
+        OpIterator last = new TupleIterator(td, childTups);
+        last.open();
+        inputs.add(last);
+        merge = new LoserTree(inputs, new TupleComparator(orderByFields, asc));
+    }
+
+    private void deleteRuns() {
+        for (SpillFile run : runs) {
+            try {
+                run.delete();
+            } catch (IOException e) {
+                // it is deleted on exit
+            }
+        }
+        runs.clear();
+    }
+
     public void close() {
         super.close();
         it = null;
+        merge = null;
+        childTups.clear();
+        deleteRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        startOutput();
     }
 
     /**
@@ -74,6 +254,9 @@ public class OrderBy extends Operator {
      * tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (merge != null) {
+            return merge.hasNext() ? merge.next() : null;
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -91,25 +274,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
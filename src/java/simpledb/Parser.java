@@ -5,6 +5,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -22,6 +24,11 @@ public class Parser {
     protected boolean interactive = true;
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    /**
+     * The LIMIT of the statement being processed, which Zql does not parse,
+     * or LogicalPlan.NO_LIMIT
+     */
+    private int limit = LogicalPlan.NO_LIMIT;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -216,8 +223,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -225,13 +232,12 @@ public class Parser {
                 throw new simpledb.ParsingException("Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException("Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression()).getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression()).getOperand(0)).getValue();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
             } else {
                 if (groupByField != null && !(groupByField.equals(si.getTable() + "." + si.getColumn()) || groupByField
                         .equals(si.getColumn()))) {
@@ -242,28 +248,26 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByField != null && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException("Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException("Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException("Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -275,6 +279,7 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
@@ -432,28 +437,33 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            // SET TRANSACTION READ ONLY reads a snapshot without locks
+            curtrans = new Transaction(s.isReadOnly());
             curtrans.start();
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = " + curtrans.getId().getId());
+            System.out.println("Started a new " + (s.isReadOnly() ? "read-only " : "") + "transaction tid = "
+                    + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
     }
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s) throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
         } catch (IOException e) {
             throw new simpledb.ParsingException(e);
+        } finally {
+            limit = LogicalPlan.NO_LIMIT;
         }
 
         throw new simpledb.ParsingException("Cannot generate logical plan for expression : " + s);
@@ -469,14 +479,79 @@ public class Parser {
 
     public void processNextStatement(String s) {
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processStatement(new ByteArrayInputStream(stripLimit(s).getBytes("UTF-8")));
+        } catch (simpledb.ParsingException e) {
+            System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } finally {
+            limit = LogicalPlan.NO_LIMIT;
         }
     }
 
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile("\\s+LIMIT\\s+([^\\s;]+)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern SELECT_STATEMENT = Pattern.compile("^\\s*SELECT\\s", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Removes a LIMIT clause from the end of statement s, which Zql cannot
+     * parse, and records its limit for the plan of the statement. Only
+     * queries are limited, so a LIMIT at the end of any other statement,
+     * including an INSERT of the results of a query, is an error.
+     *
+     * @return s without the LIMIT clause
+     * @throws simpledb.ParsingException if s is not a query, or if the limit
+     *                                    is not a non-negative integer
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            limit = LogicalPlan.NO_LIMIT;
+            return s;
+        }
+        if (!SELECT_STATEMENT.matcher(s).find()) {
+            throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
+        }
+        try {
+            limit = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT must be a number: " + m.group(1));
+        }
+        if (limit < 0) {
+            throw new simpledb.ParsingException("LIMIT must not be negative: " + limit);
+        }
+        return s.substring(0, m.start()) + ";";
+    }
+
+    /**
+     * Processes the statements read from is, such as a query file, one at a
+     * time as if each had been passed to {@link #processNextStatement(String)}
+     * in turn, so that a LIMIT clause is handled in each. Statements are
+     * split at ';', as at the interactive prompt.
+     */
     public void processNextStatement(InputStream is) {
+        StringBuilder statement = new StringBuilder();
+        try {
+            Reader in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            int c;
+            while ((c = in.read()) != -1) {
+                statement.append((char) c);
+                if (c == ';') {
+                    processNextStatement(statement.toString().trim());
+                    statement.setLength(0);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (statement.toString().trim().length() > 0) {
+            processNextStatement(statement.toString().trim());
+        }
+    }
+
+    private void processStatement(InputStream is) {
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
@@ -613,7 +688,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;") || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
                         quit = true;
@@ -621,7 +695,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n", ((double) time / 1000.0));
 
@@ -15,6 +15,7 @@ public class QueryPlanVisualizer {
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -134,14 +135,20 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < a.numAggregates(); i++) {
+                    if (i > 0) {
+                        aggs.append(", ");
+                    }
+                    aggs.append(String.format("%1$s(%2$s)", a.aggregateOp(i), a.aggregateFieldName(i)));
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d", a.aggregateOp(), a.aggregateFieldName(),
-                            a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d", aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d", GROUPBY, a.groupFieldName(),
-                            a.aggregateOp(), a.aggregateFieldName(), a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d", GROUPBY, a.groupFieldName(),
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -174,8 +181,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", ORDERBY,
-                        children[0].getTupleDesc().getFieldName(o.getOrderByField()), o.getEstimatedCardinality());
+                StringBuilder keys = new StringBuilder();
+                for (int i = 0; i < o.numOrderByFields(); i++) {
+                    if (i > 0) {
+                        keys.append(", ");
+                    }
+                    keys.append(children[0].getTupleDesc().getFieldName(o.getOrderByField(i)));
+                    keys.append(o.isASC(i) ? "" : " desc");
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", ORDERBY, keys, o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -187,6 +201,34 @@ public class QueryPlanVisualizer {
                         thisNode.textStartPosition + thisNode.text.length() - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit) {
+                String text;
+                if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    StringBuilder keys = new StringBuilder();
+                    for (int i = 0; i < o.numOrderByFields(); i++) {
+                        if (i > 0) {
+                            keys.append(", ");
+                        }
+                        keys.append(children[0].getTupleDesc().getFieldName(o.getOrderByField(i)));
+                        keys.append(o.isASC(i) ? "" : " desc");
+                    }
+                    text = String.format("%1$s(%2$s), %3$s %4$d", ORDERBY, keys, LIMIT, o.getLimit());
+                } else {
+                    text = String.format("%1$s %2$d", LIMIT, ((Limit) plan).getLimit());
+                }
+                thisNode.text = String.format("%1$s,card:%2$d", text, plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth, currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length() - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAhead watches the pages a HeapFile iterator fetches and, once the
+ * accesses are sequential, asks the BufferPool to read the next pages of
+ * the file in the background.
+ * <p>
+ * The window is {@link BufferPool#getReadAheadPages} pages. A new window is
+ * scheduled when the scan has consumed half of the previous one, so the
+ * reads stay ahead of the scan without holding more than one window of
+ * unread pages in the pool. Any jump in the access pattern starts over.
+ * <p>
+ * Not thread-safe; each iterator has its own ReadAhead. The reads run on a
+ * small pool of daemon threads shared by all scans.
+ */
+public class ReadAhead {
+
+    /**
+     * Number of consecutive pages a scan must fetch before it counts as
+     * sequential.
+     */
+    private static final int SEQUENTIAL_TRIGGER = 2;
+    private static final int READER_THREADS = 2;
+
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(READER_THREADS, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int tableId;
+    private int lastPage;
+    private int run;
+    private int nextToRead;
+
+    /**
+     * @param tableId the heap file whose pages are read ahead
+     */
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+        this.reset();
+    }
+
+    /**
+     * Forgets the access history, e.g. when the iterator is rewound.
+     */
+    public void reset() {
+        this.lastPage = -1;
+        this.run = 0;
+        this.nextToRead = 0;
+    }
+
+    /**
+     * Records that page pgNo was fetched and schedules the next window if
+     * the scan is sequential and close to the end of what was read ahead.
+     *
+     * @param pgNo     the page that was just fetched
+     * @param numPages the number of pages in the file
+     */
+    public void pageAccessed(int pgNo, int numPages) {
+        if (pgNo == this.lastPage + 1) {
+            this.run++;
+        } else {
+            this.run = 1;
+            this.nextToRead = pgNo + 1;
+        }
+        this.lastPage = pgNo;
+        this.nextToRead = Math.max(this.nextToRead, pgNo + 1);
+
+        BufferPool pool = Database.getBufferPool();
+        int window = pool.getReadAheadPages();
+        if (window <= 0 || this.run < SEQUENTIAL_TRIGGER || this.nextToRead - pgNo > window / 2) {
+            return;
+        }
+        int end = Math.min(numPages, pgNo + 1 + window);
+        if (end <= this.nextToRead) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<>(end - this.nextToRead);
+        for (int i = this.nextToRead; i < end; i++) {
+            pids.add(new HeapPageId(this.tableId, i));
+        }
+        this.nextToRead = end;
+        READERS.execute(() -> pool.prefetchPages(pids));
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame. The BufferPool reports every page that
+ * becomes resident, every hit on a resident page and every page that
+ * leaves the pool; the policy keeps whatever bookkeeping it needs to pick
+ * a victim later.
+ * <p>
+ * Implementations are not thread safe. The BufferPool serializes all
+ * calls on a given policy instance.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used during victim selection to ask the BufferPool whether
+     * a candidate page may actually be evicted (e.g. it is clean under
+     * NO STEAL).
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * The replacement policies that ship with SimpleDb.
+     */
+    public enum Kind {
+        CLOCK {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new ClockPolicy(capacity);
+            }
+        }, LRU_K {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new LruKPolicy(capacity, LruKPolicy.DEFAULT_K);
+            }
+        }, TWO_Q {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new TwoQPolicy(capacity);
+            }
+        };
+
+        /**
+         * @param capacity the number of frames the policy will manage
+         * @return a fresh, empty policy instance of this kind
+         */
+        public abstract ReplacementPolicy create(int capacity);
+    }
+
+    /**
+     * Record that pid has just become resident in the pool.
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Record a hit on the resident page pid.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Forget about pid; it has been discarded from the pool, e.g. on abort
+     * or because its page was freed. Removing a page that is not tracked is
+     * a no-op.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Record that pid has been evicted from the pool to free its frame.
+     * Policies that remember evicted pages override this; by default it is
+     * the same as {@link #pageRemoved(PageId)}.
+     */
+    public default void pageEvicted(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    /**
+     * Pick the page that should be evicted next. The victim is not removed
+     * from the policy; the caller is expected to call
+     * {@link #pageEvicted(PageId)} once the page has left the pool.
+     *
+     * @param filter consulted for every candidate, only pages it accepts are
+     *               returned
+     * @return the victim, or null if no tracked page is evictable
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /**
+     * @return the number of pages currently tracked
+     */
+    public int size();
+}
@@ -0,0 +1,34 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages, which
+ * store strings with their actual length instead of padding them to
+ * STRING_LEN. Tables with mostly short strings need far fewer pages, so
+ * scans read less. Tables of INT fields only gain nothing and are better
+ * kept in the fixed layout of HeapPage, which has no slot directory.
+ * <p>
+ * The file format differs from that of HeapFile, so a table has to be
+ * created in this format; it cannot be switched later.
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    /**
+     * Constructs a heap file of slotted pages backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    protected HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+}
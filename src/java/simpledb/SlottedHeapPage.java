@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SlottedHeapPage is a HeapPage that stores tuples with variable-length
+ * strings. A STRING field takes 4 bytes for its length plus one byte per
+ * character, instead of the STRING_LEN + 4 bytes of the fixed layout, so
+ * pages of tables with short strings hold many more tuples.
+ * <p>
+ * The page starts with a header of two 16-bit unsigned values: the number of
+ * entries in the slot directory, and the number of bytes used by the tuple
+ * area. The slot directory follows, with one entry per slot holding the
+ * offset and the length of its tuple, again as 16-bit values; an offset of
+ * 0 marks an empty slot. Tuples are stored back to back at the end of the
+ * page, growing towards the directory. A slot keeps its number while the
+ * tuple is on the page, so record ids stay valid when the tuple area is
+ * compacted to reuse the space of deleted tuples.
+ * <p>
+ * Since the offsets are 16 bits wide, pages may be at most 64KB.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int ENTRY_SIZE = 4;
+    private static final int MAX_PAGE_SIZE = 1 << 16;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * As with HeapPage, data is not copied unless the page is modified.
+     *
+     * @throws IOException if the page size is larger than 64KB
+     * @see HeapPage#HeapPage(HeapPageId, byte[])
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedHeapPage over the remaining bytes of a buffer.
+     *
+     * @see HeapPage#HeapPage(HeapPageId, ByteBuffer)
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        super(id, data);
+        if (BufferPool.getPageSize() > MAX_PAGE_SIZE) {
+            throw new IOException("Slotted pages can be at most " + MAX_PAGE_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * The maximum number of slots, reached when every field has its minimum
+     * size of 4 bytes.
+     */
+    @Override
+    int getNumTuples() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (ENTRY_SIZE + 4 * this.td.numFields());
+    }
+
+    @Override
+    public HeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    private int numEntries() {
+        return this.data.getChar(0);
+    }
+
+    private int usedBytes() {
+        return this.data.getChar(2);
+    }
+
+    private static int entryOffset(int slotId) {
+        return HEADER_SIZE + slotId * ENTRY_SIZE;
+    }
+
+    /**
+     * @return the number of bytes between the slot directory and the tuple
+     * area
+     */
+    private int gap() {
+        return BufferPool.getPageSize() - this.usedBytes() - entryOffset(this.numEntries());
+    }
+
+    /**
+     * @return the number of bytes taken by the tuples on this page
+     */
+    private int liveBytes() {
+        int live = 0;
+        for (int i = 0; i < this.numEntries(); i++) {
+            live += this.data.getChar(entryOffset(i) + 2);
+        }
+        return live;
+    }
+
+    @Override
+    int fieldOffset(ByteBuffer bytes, int slotId, int i) {
+        int offset = bytes.getChar(entryOffset(slotId));
+        for (int j = 0; j < i; j++) {
+            offset += storedLength(this.td.getFieldType(j), bytes, offset);
+        }
+        return offset;
+    }
+
+    @Override
+    int nextUsedSlot(ByteBuffer bytes, int slotId) {
+        int entries = bytes.getChar(0);
+        for (; slotId < entries; slotId++) {
+            if (bytes.getChar(entryOffset(slotId)) != 0) {
+                return slotId;
+            }
+        }
+        return this.numSlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    @Override
+    public boolean isSlotUsed(int i) {
+        return i < this.numEntries() && this.data.getChar(entryOffset(i)) != 0;
+    }
+
+    /**
+     * Returns the number of tuples of the largest possible size that still
+     * fit on this page. Shorter tuples may fit even if this is 0.
+     */
+    @Override
+    public int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < this.numEntries(); i++) {
+            if (this.isSlotUsed(i)) {
+                used++;
+            }
+        }
+        int free = BufferPool.getPageSize() - entryOffset(this.numEntries()) - this.liveBytes();
+        return Math.min(this.numSlots - used, free / (ENTRY_SIZE + this.td.getSize()));
+    }
+
+    /**
+     * Adds the specified tuple to the page, compacting the tuple area first
+     * if the free space is fragmented by deletes.
+     *
+     * @throws DbException if the tuple does not fit or tupledesc is mismatch.
+     */
+    @Override
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("TupleDesc is not match");
+        }
+        byte[] tuple = this.encode(t);
+        int entries = this.numEntries();
+        int slotId = this.nextFreeEntry();
+        int needed = tuple.length + (slotId == entries ? ENTRY_SIZE : 0);
+        if (slotId >= this.numSlots
+                || needed > BufferPool.getPageSize() - entryOffset(entries) - this.liveBytes()) {
+            throw new DbException("page is full");
+        }
+        this.prepareWrite();
+        if (needed > this.gap()) {
+            this.compact();
+        }
+        int used = this.usedBytes() + tuple.length;
+        int offset = BufferPool.getPageSize() - used;
+        ByteBuffer slot = this.data.duplicate();
+        slot.position(offset);
+        slot.put(tuple);
+        this.data.putChar(2, (char) used);
+        this.data.putChar(entryOffset(slotId), (char) offset);
+        this.data.putChar(entryOffset(slotId) + 2, (char) tuple.length);
+        if (slotId == entries) {
+            this.data.putChar(0, (char) (entries + 1));
+        }
+        t.setRecordId(new RecordId(this.pid, slotId));
+    }
+
+    /**
+     * @return the first empty directory entry, or the number of entries if
+     * a new one has to be added
+     */
+    private int nextFreeEntry() {
+        int entries = this.numEntries();
+        for (int i = 0; i < entries; i++) {
+            if (this.data.getChar(entryOffset(i)) == 0) {
+                return i;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its space is reclaimed right
+     * away if it is the last tuple of the tuple area, and otherwise by the
+     * next compaction.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    @Override
+    public void deleteTuple(Tuple t) throws DbException {
+        if (!this.pid.equals(t.getRecordId().getPageId())) {
+            throw new DbException("This tuple is not on this page");
+        }
+        int slotId = t.getRecordId().getTupleNumber();
+        if (!this.isSlotUsed(slotId)) {
+            throw new DbException("Tuple slot is already empty");
+        }
+        this.prepareWrite();
+        int offset = this.data.getChar(entryOffset(slotId));
+        int length = this.data.getChar(entryOffset(slotId) + 2);
+        for (int i = 0; i < length; i++) {
+            this.data.put(offset + i, (byte) 0);
+        }
+        this.data.putInt(entryOffset(slotId), 0);
+        if (offset == BufferPool.getPageSize() - this.usedBytes()) {
+            this.data.putChar(2, (char) (this.usedBytes() - length));
+        }
+        int entries = this.numEntries();
+        while (entries > 0 && this.data.getChar(entryOffset(entries - 1)) == 0) {
+            entries--;
+        }
+        this.data.putChar(0, (char) entries);
+    }
+
+    /**
+     * Moves all tuples to the end of the page so that the free space is one
+     * gap between the directory and the tuple area.
+     */
+    private void compact() {
+        int pageSize = BufferPool.getPageSize();
+        byte[] area = new byte[pageSize];
+        int used = 0;
+        for (int i = 0; i < this.numEntries(); i++) {
+            int offset = this.data.getChar(entryOffset(i));
+            if (offset == 0) {
+                continue;
+            }
+            int length = this.data.getChar(entryOffset(i) + 2);
+            used += length;
+            ByteBuffer src = this.data.duplicate();
+            src.position(offset);
+            src.get(area, pageSize - used, length);
+            this.data.putChar(entryOffset(i), (char) (pageSize - used));
+        }
+        int start = entryOffset(this.numEntries());
+        ByteBuffer dst = this.data.duplicate();
+        dst.position(start);
+        dst.put(area, start, pageSize - start);
+        this.data.putChar(2, (char) used);
+    }
+
+    /**
+     * Serializes t in the variable-length format of this page.
+     */
+    private byte[] encode(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(this.td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < this.td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (f.getType() == Type.STRING_TYPE) {
+                    String s = ((StringField) f).getValue();
+                    if (s.length() > Type.STRING_LEN) {
+                        s = s.substring(0, Type.STRING_LEN);
+                    }
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                } else {
+                    f.serialize(dos);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes the field of type type at offset takes in
+     * the variable-length format
+     */
+    private static int storedLength(Type type, ByteBuffer bytes, int offset) {
+        if (type == Type.STRING_TYPE) {
+            return 4 + bytes.getInt(offset);
+        }
+        return type.getLen();
+    }
+}
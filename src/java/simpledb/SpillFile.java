@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary heap file that an operator writes tuples to when
+ * they do not fit in memory, and reads back later. Pages are filled in
+ * memory and written straight to the file, then read straight from it,
+ * without going through the buffer pool or taking locks: nobody else knows
+ * of the file. It is in the catalog only because pages look up their
+ * TupleDesc there, and is removed from it when deleted.
+ * <p>
+ * The tuples read back have no record id, unless the file keeps the record
+ * ids of the tuples added. It then stores each record id after the fields
+ * of its tuple, as a number for the class of its page id, its tuple number
+ * and its page id serialized to ints, and rebuilds the page id from these
+ * ints as {@link LogFile} does.
+ *
+ * @see Aggregate
+ * @see OrderBy
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final HeapFile file;
+    /** Ints a page id may serialize to, or -1 if record ids are not kept. */
+    private final int pageIdInts;
+    /** The constructors of the page ids kept, numbered from 1 on. */
+    private final List<Constructor<?>> pageIdConstructors = new ArrayList<Constructor<?>>();
+    private final Map<Class<?>, Integer> pageIdClasses = new HashMap<Class<?>, Integer>();
+    private HeapPage page;
+    private int numPages;
+    private int numTuples;
+
+    /**
+     * Creates an empty spill file for tuples of td, which does not keep
+     * their record ids.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this(td, -1);
+    }
+
+    /**
+     * Creates an empty spill file for tuples of td, which keeps their record
+     * ids.
+     *
+     * @param pageIdInts the most ints the page id of a record id added
+     *                   serializes to, or -1 not to keep record ids
+     * @see #pageIdInts(Tuple)
+     */
+    public SpillFile(TupleDesc td, int pageIdInts) throws IOException {
+        this.td = td;
+        this.pageIdInts = pageIdInts;
+        TupleDesc fileTd = td;
+        if (pageIdInts >= 0) {
+            Type[] types = new Type[2 + pageIdInts];
+            Arrays.fill(types, Type.INT_TYPE);
+            fileTd = TupleDesc.merge(td, new TupleDesc(types));
+        }
+        File f = File.createTempFile("spill", ".dat");
+        f.deleteOnExit();
+        this.file = new HeapFile(f, fileTd);
+        Database.getCatalog().addTable(this.file, f.getName());
+    }
+
+    /**
+     * @return the number of ints the page id of the record id of t
+     * serializes to, or 0 if t has no record id
+     */
+    public static int pageIdInts(Tuple t) {
+        RecordId rid = t.getRecordId();
+        return rid == null ? 0 : rid.getPageId().serialize().length;
+    }
+
+    /**
+     * @return the most ints the page id of a record id added may serialize
+     * to, or -1 if record ids are not kept
+     */
+    public int pageIdInts() {
+        return this.pageIdInts;
+    }
+
+    /**
+     * Appends a copy of a tuple to the file. The tuple itself, and its record
+     * id, are left as they are.
+     *
+     * @throws DbException if record ids are kept and the page id of the
+     *                     record id of t serializes to too many ints
+     */
+    public void add(Tuple t) throws IOException, DbException {
+        if (this.page == null || this.page.getNumEmptySlots() == 0) {
+            writePage();
+            this.page = new HeapPage(new HeapPageId(this.file.getId(), this.numPages++),
+                    HeapPage.createEmptyPageData());
+        }
+        // inserting sets the record id of the tuple inserted
+        Tuple copy = new Tuple(this.file.getTupleDesc());
+        int n = this.td.numFields();
+        for (int i = 0; i < n; i++) {
+            copy.setField(i, t.getField(i));
+        }
+        if (this.pageIdInts >= 0) {
+            RecordId rid = t.getRecordId();
+            int[] pageId = rid == null ? new int[0] : rid.getPageId().serialize();
+            if (pageId.length > this.pageIdInts) {
+                throw new DbException("Page id " + rid.getPageId() + " does not fit in " + this.pageIdInts + " ints");
+            }
+            copy.setField(n, new IntField(rid == null ? 0 : pageIdClass(rid.getPageId(), pageId.length)));
+            copy.setField(n + 1, new IntField(rid == null ? 0 : rid.getTupleNumber()));
+            for (int i = 0; i < this.pageIdInts; i++) {
+                copy.setField(n + 2 + i, new IntField(i < pageId.length ? pageId[i] : 0));
+            }
+        }
+        this.page.insertTuple(copy);
+        this.numTuples++;
+    }
+
+    // numbers the class of a page id from 1 on, remembering its constructor
+    // from the ints it serializes to
+    private int pageIdClass(PageId pid, int numInts) throws DbException {
+        Integer number = this.pageIdClasses.get(pid.getClass());
+        if (number != null) {
+            return number;
+        }
+        Class<?>[] ints = new Class<?>[numInts];
+        Arrays.fill(ints, int.class);
+        for (Constructor<?> c : pid.getClass().getDeclaredConstructors()) {
+            if (Arrays.equals(c.getParameterTypes(), ints)) {
+                this.pageIdConstructors.add(c);
+                this.pageIdClasses.put(pid.getClass(), this.pageIdConstructors.size());
+                return this.pageIdConstructors.size();
+            }
+        }
+        throw new DbException("No constructor from serialized ints in " + pid.getClass().getName());
+    }
+
+    // rebuilds the record id stored after the fields of a tuple
+    private RecordId recordId(Tuple stored) throws DbException {
+        int n = this.td.numFields();
+        int number = ((IntField) stored.getField(n)).getValue();
+        if (number == 0) {
+            return null;
+        }
+        Constructor<?> c = this.pageIdConstructors.get(number - 1);
+        Object[] args = new Object[c.getParameterTypes().length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = ((IntField) stored.getField(n + 2 + i)).getValue();
+        }
+        try {
+            PageId pid = (PageId) c.newInstance(args);
+            return new RecordId(pid, ((IntField) stored.getField(n + 1)).getValue());
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new DbException("Cannot rebuild page id: " + e);
+        }
+    }
+
+    /**
+     * @return the number of tuples added
+     */
+    public int numTuples() {
+        return this.numTuples;
+    }
+
+    private void writePage() throws IOException {
+        if (this.page != null) {
+            this.file.writePage(this.page);
+            this.page = null;
+        }
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file, in the order they
+     * were added. No tuples may be added after this is called.
+     */
+    public OpIterator iterator() throws IOException {
+        writePage();
+        return new OpIterator() {
+
+            private static final long serialVersionUID = 1L;
+
+            private int pgNo;
+            private Iterator<Tuple> tuples;
+
+            @Override
+            public void open() {
+                this.pgNo = 0;
+                this.tuples = null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (this.tuples == null || !this.tuples.hasNext()) {
+                    if (this.pgNo == numPages) {
+                        return false;
+                    }
+                    HeapPageId pid = new HeapPageId(file.getId(), this.pgNo++);
+                    this.tuples = ((HeapPage) file.readPage(pid)).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Tuple next() throws DbException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple stored = this.tuples.next();
+                if (pageIdInts < 0) {
+                    stored.setRecordId(null);
+                    return stored;
+                }
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, stored.getField(i));
+                }
+                t.setRecordId(recordId(stored));
+                return t;
+            }
+
+            @Override
+            public void rewind() {
+                open();
+            }
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public void close() {
+                this.tuples = null;
+            }
+        };
+    }
+
+    /**
+     * Deletes the file and removes it from the catalog.
+     */
+    public void delete() throws IOException {
+        this.page = null;
+        Database.getCatalog().removeTable(this.file.getId());
+        this.file.close();
+        File f = this.file.getFile();
+        f.delete();
+        FreeSpaceMap.sideFile(f).delete();
+    }
+}
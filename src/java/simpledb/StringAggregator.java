@@ -1,16 +1,14 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
- * Knows how to compute some aggregate over a set of StringFields.
+ * Knows how to compute some aggregate over a set of StringFields. The
+ * tuples are not kept, only a running count for each group.
  */
-public class StringAggregator implements Aggregator {
+public class StringAggregator implements Aggregator, MultiAggregator.GroupState {
 
     private static final long serialVersionUID = 1L;
 
@@ -18,7 +16,9 @@ public class StringAggregator implements Aggregator {
     private Type groupByFieldType;
     private int aggregateField;
     private Op aggregateOp;
-    private List<Tuple> tuples;
+    private GroupIndex groups;
+    // the running count of each group, by group number
+    private int[] counts;
 
     /**
      * Aggregate constructor
@@ -32,6 +32,14 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, new GroupIndex(gbfield, gbfieldtype));
+    }
+
+    /**
+     * Aggregate constructor for an aggregator that numbers its groups with
+     * groups, which it may share with other aggregators.
+     */
+    StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, GroupIndex groups) {
         if (!Op.COUNT.equals(what)) {
             throw new IllegalArgumentException("Op should be COUNT");
         }
@@ -39,6 +47,8 @@ public class StringAggregator implements Aggregator {
         this.groupByFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.aggregateOp = what;
+        this.groups = groups;
+        this.counts = new int[16];
     }
 
     /**
@@ -48,10 +58,28 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (this.tuples == null) {
-            this.tuples = new ArrayList<>();
+        mergeTupleIntoGroup(tup, Integer.MAX_VALUE);
+    }
+
+    public boolean mergeTupleIntoGroup(Tuple tup, int maxGroups) {
+        int group = this.groups.groupOf(tup, maxGroups);
+        if (group == -1) {
+            return false;
         }
-        this.tuples.add(tup);
+        merge(group, tup);
+        return true;
+    }
+
+    public void merge(int group, Tuple tup) {
+        this.counts = GroupIndex.ensureCapacity(this.counts, group);
+        this.counts[group]++;
+    }
+
+    public int value(int group, Op op) {
+        if (!Op.COUNT.equals(op)) {
+            throw new UnsupportedOperationException(String.format("%s is not supported in StringAggregator", op.toString()));
+        }
+        return this.counts[group];
     }
 
     /**
@@ -64,39 +92,20 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        switch (this.aggregateOp) {
-        case COUNT:
-            return count(this.tuples, groupByFieldType, groupByField);
-        default:
-            throw new UnsupportedOperationException(String.format("%s is not supported in IntegerAggregator", this.aggregateOp.toString()));
-        }
-    }
-
-    private OpIterator count(List<Tuple> tuples, Type groupByFieldType, int groupByField) {
-        if (tuples == null || tuples.isEmpty()) {
+        if (this.groups.numGroups() == 0) {
             throw new NoSuchElementException("No tuple can be processed");
         }
-
-        // for no grouping
-        if (groupByField == NO_GROUPING) {
-            TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, new IntField(tuples.size()));
-            return new TupleIterator(td, Collections.singletonList(tuple));
-        }
-
-        // for grouping
-        Map<Field, Integer> fieldToCountMap = new HashMap<>();
-        for (Tuple tuple : tuples) {
-            Field key = tuple.getField(groupByField);
-            fieldToCountMap.put(key, fieldToCountMap.getOrDefault(key, 0) + 1);
-        }
+        TupleDesc td = this.groupByField == NO_GROUPING ? new TupleDesc(new Type[] { Type.INT_TYPE })
+                : new TupleDesc(new Type[] { this.groupByFieldType, Type.INT_TYPE });
         List<Tuple> result = new ArrayList<>();
-        TupleDesc td = new TupleDesc(new Type[] { groupByFieldType, Type.INT_TYPE });
-        for (Map.Entry<Field, Integer> entry : fieldToCountMap.entrySet()) {
+        for (int group = 0; group < this.groups.numGroups(); group++) {
             Tuple tuple = new Tuple(td);
-            tuple.setField(0, entry.getKey());
-            tuple.setField(1, new IntField(entry.getValue()));
+            if (this.groupByField == NO_GROUPING) {
+                tuple.setField(0, new IntField(this.counts[group]));
+            } else {
+                tuple.setField(0, this.groups.value(group));
+                tuple.setField(1, new IntField(this.counts[group]));
+            }
             result.add(tuple);
         }
         return new TupleIterator(td, result);
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements a relational ORDER BY followed by a
+ * LIMIT: it returns the first n tuples of its child in order. Instead of
+ * sorting every tuple like {@link OrderBy}, it keeps the best n tuples seen
+ * so far in a heap whose root is the worst of them, so that each tuple of
+ * the child takes at most O(log n) to consider and memory is bounded by n
+ * tuples.
+ * <p>
+ * Tuples that compare equal are returned in the order the child returned
+ * them, as {@link OrderBy} does.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc           whether the sort order of each field is ascending.
+     * @param limit         the number of tuples to return at most.
+     * @param child         the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("Need an order for each of at least one field");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+    }
+
+    /**
+     * @return the number of tuples returned at most
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of fields the sort is applied to
+     */
+    public int numOrderByFields() {
+        return this.orderByFields.length;
+    }
+
+    /**
+     * @return the i-th field the sort is applied to
+     */
+    public int getOrderByField(int i) {
+        return this.orderByFields[i];
+    }
+
+    /**
+     * @return whether the sort order of the i-th field is ascending
+     */
+    public boolean isASC(int i) {
+        return this.asc[i];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /** A tuple and its position in the child, which breaks ties. */
+    private static class Ranked {
+        final Tuple tuple;
+        final long seq;
+
+        Ranked(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> comparator = new TupleComparator(orderByFields, asc);
+        Comparator<Ranked> order = new Comparator<Ranked>() {
+            public int compare(Ranked a, Ranked b) {
+                int c = comparator.compare(a.tuple, b.tuple);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        };
+        // the worst of the best tuples so far is at the root
+        PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(Math.max(1, Math.min(limit, 1 << 16)),
+                Collections.reverseOrder(order));
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Ranked(t, seq));
+            } else if (limit > 0 && comparator.compare(t, heap.peek().tuple) < 0) {
+                // a later tuple equal to the worst does not displace it
+                heap.poll();
+                heap.add(new Ranked(t, seq));
+            }
+            seq++;
+        }
+
+        Ranked[] best = heap.toArray(new Ranked[heap.size()]);
+        Arrays.sort(best, order);
+        top.clear();
+        for (Ranked r : best) {
+            top.add(r.tuple);
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first tuples of the
+     * child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     * tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
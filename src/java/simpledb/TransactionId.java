@@ -12,15 +12,37 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long age;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        age = myid;
+    }
+
+    /**
+     * Creates the id of a restart of an aborted transaction. The restart is
+     * a new transaction, but it keeps the age of the original one, so
+     * timestamp-ordered deadlock prevention does not keep aborting it.
+     *
+     * @param restartOf the id of the aborted transaction
+     */
+    public TransactionId(TransactionId restartOf) {
+        myid = counter.getAndIncrement();
+        age = restartOf.age;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return the age of this transaction; smaller values are older. This is
+     * the id of the first attempt of the transaction.
+     */
+    public long getAge() {
+        return age;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
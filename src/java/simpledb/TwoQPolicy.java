@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). Pages seen for the first time
+ * enter the FIFO queue A1in. Pages evicted from A1in are remembered (id
+ * only) in the ghost queue A1out; a page that is read again while it is
+ * still in A1out is promoted into the LRU queue Am. One-off accesses, such
+ * as a large sequential scan, therefore never push the hot set out of Am.
+ * Pages that are discarded rather than evicted are forgotten altogether.
+ * <p>
+ * All queues are linked hash sets, so every operation is O(1) apart from
+ * skipping pages the eviction filter rejects.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    public TwoQPolicy(int capacity) {
+        // the sizes recommended in the 2Q paper: Kin = 25%, Kout = 50%
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (this.a1in.contains(pid) || this.am.contains(pid)) {
+            this.pageAccessed(pid);
+        } else if (this.a1out.remove(pid)) {
+            this.am.add(pid);
+        } else {
+            this.a1in.add(pid);
+        }
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored, it is a FIFO
+        if (this.am.remove(pid)) {
+            this.am.add(pid);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        // a discarded page was not evicted, so it is not remembered either
+        this.a1in.remove(pid);
+        this.am.remove(pid);
+        this.a1out.remove(pid);
+    }
+
+    @Override
+    public void pageEvicted(PageId pid) {
+        if (this.a1in.remove(pid)) {
+            this.a1out.add(pid);
+            if (this.a1out.size() > this.maxOut) {
+                Iterator<PageId> it = this.a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            this.am.remove(pid);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(EvictionFilter filter) {
+        LinkedHashSet<PageId> first = this.a1in.size() > this.maxIn || this.am.isEmpty() ? this.a1in : this.am;
+        LinkedHashSet<PageId> second = first == this.a1in ? this.am : this.a1in;
+        PageId victim = this.firstEvictable(first, filter);
+        return victim != null ? victim : this.firstEvictable(second, filter);
+    }
+
+    @Override
+    public int size() {
+        return this.a1in.size() + this.am.size();
+    }
+
+    private PageId firstEvictable(LinkedHashSet<PageId> queue, EvictionFilter filter) {
+        for (PageId pid : queue) {
+            if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot
+ * transactions may still read, so that read-only transactions see a
+ * consistent state of the database without taking locks.
+ * <p>
+ * Commits are numbered by a clock, and a snapshot transaction reads the
+ * state after the commit that was last when it began. Before a page that
+ * a transaction changed is written to disk, its committed version is
+ * retained here, pending until the writer completes: a commit stamps it
+ * with the commit's number, an abort drops it. A snapshot reads the oldest
+ * retained version that is pending or was replaced after the snapshot
+ * began, or else the current committed version. Versions are dropped as
+ * soon as no active snapshot can read them, so without snapshots nothing is
+ * kept past the commit.
+ * <p>
+ * Snapshots only begin between commits: commits hold the read side of a
+ * read-write lock while they are numbered, and beginning a snapshot takes
+ * the write side.
+ *
+ * @Threadsafe
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * A committed version of a page, readable by snapshots that began
+     * before the commit that replaced it. Guarded by the monitor of the
+     * chain it is on.
+     */
+    private static class Version {
+        long replacedBy = PENDING;
+        final Page page;
+
+        Version(Page page) {
+            this.page = page;
+        }
+    }
+
+    private final ReadWriteLock commitLock;
+    private long clock;
+    /**
+     * The active snapshots and the commit each of them reads.
+     */
+    private final Map<TransactionId, Long> snapshots;
+    /**
+     * The retained versions of each page, oldest first.
+     */
+    private final Map<PageId, List<Version>> versions;
+    /**
+     * The pending versions each writer retained, by page.
+     */
+    private final Map<TransactionId, Map<PageId, Version>> pending;
+
+    public VersionStore() {
+        this.commitLock = new ReentrantReadWriteLock();
+        this.clock = 0;
+        this.snapshots = new ConcurrentHashMap<>();
+        this.versions = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Makes tid a snapshot transaction that reads the state of the database
+     * as of the last commit.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.commitLock.writeLock().lock();
+        try {
+            this.snapshots.put(tid, this.clock);
+        } finally {
+            this.commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if tid is an active snapshot transaction
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return this.snapshots.containsKey(tid);
+    }
+
+    /**
+     * Ends the snapshot of tid and drops the versions only it could read.
+     */
+    public void endSnapshot(TransactionId tid) {
+        if (this.snapshots.remove(tid) != null) {
+            this.prune();
+        }
+    }
+
+    /**
+     * Retains the committed version of a page that writer changed. Must be
+     * called before the changed page is written to disk; a page is only
+     * retained once per writer.
+     *
+     * @param committed the version of the page before writer changed it
+     */
+    public void retain(TransactionId writer, Page committed) {
+        Map<PageId, Version> retained = this.pending.computeIfAbsent(writer, k -> new ConcurrentHashMap<>());
+        if (retained.containsKey(committed.getId())) {
+            return;
+        }
+        Version version = new Version(committed);
+        retained.put(committed.getId(), version);
+        // compute is atomic per page, so a concurrent prune cannot drop the
+        // chain while the version is added
+        this.versions.compute(committed.getId(), (pid, chain) -> {
+            if (chain == null) {
+                chain = new ArrayList<>();
+            }
+            synchronized (chain) {
+                chain.add(version);
+            }
+            return chain;
+        });
+    }
+
+    /**
+     * Starts the commit of a transaction; {@link #endCommit} must follow.
+     * No snapshot begins in between.
+     */
+    public void beginCommit() {
+        this.commitLock.readLock().lock();
+    }
+
+    /**
+     * Numbers the commit of tid and stamps the versions it retained.
+     */
+    public void endCommit(TransactionId tid) {
+        try {
+            long commit;
+            synchronized (this) {
+                commit = ++this.clock;
+            }
+            Map<PageId, Version> retained = this.pending.remove(tid);
+            if (retained != null) {
+                for (Version version : retained.values()) {
+                    List<Version> chain = this.versions.get(version.page.getId());
+                    synchronized (chain) {
+                        version.replacedBy = commit;
+                    }
+                }
+            }
+        } finally {
+            this.commitLock.readLock().unlock();
+        }
+        this.prune();
+    }
+
+    /**
+     * Drops the versions retained for tid, which aborted; the caller has
+     * already restored the pages it changed.
+     */
+    public void abort(TransactionId tid) {
+        Map<PageId, Version> retained = this.pending.remove(tid);
+        if (retained != null) {
+            for (Version version : retained.values()) {
+                this.versions.computeIfPresent(version.page.getId(), (pid, chain) -> {
+                    synchronized (chain) {
+                        chain.remove(version);
+                        return chain.isEmpty() ? null : chain;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the version of a page that the snapshot of tid reads. The
+     * caller must have taken current from the page before calling this, so
+     * that a commit in between is found among the retained versions.
+     *
+     * @param current the currently committed version of the page
+     */
+    public Page read(TransactionId tid, Page current) {
+        Long snapshot = this.snapshots.get(tid);
+        List<Version> chain = this.versions.get(current.getId());
+        if (snapshot == null || chain == null) {
+            return current;
+        }
+        synchronized (chain) {
+            for (Version version : chain) {
+                if (version.replacedBy > snapshot) {
+                    return version.page;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the number of retained versions, including pending ones
+     */
+    public int numVersions() {
+        int count = 0;
+        for (List<Version> chain : this.versions.values()) {
+            synchronized (chain) {
+                count += chain.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops the stamped versions that were replaced before the oldest
+     * active snapshot began. No snapshot may begin meanwhile, or a version
+     * stamped by a concurrent commit for it could be dropped.
+     */
+    private void prune() {
+        if (this.versions.isEmpty()) {
+            return;
+        }
+        this.commitLock.readLock().lock();
+        try {
+            long oldest = PENDING;
+            for (long snapshot : this.snapshots.values()) {
+                oldest = Math.min(oldest, snapshot);
+            }
+            long dropBefore = oldest;
+            for (PageId pid : this.versions.keySet()) {
+                this.versions.computeIfPresent(pid, (k, chain) -> {
+                    synchronized (chain) {
+                        chain.removeIf(version -> version.replacedBy != PENDING && version.replacedBy <= dropBefore);
+                        return chain.isEmpty() ? null : chain;
+                    }
+                });
+            }
+        } finally {
+            this.commitLock.readLock().unlock();
+        }
+    }
+}
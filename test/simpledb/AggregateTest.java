@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -163,5 +166,88 @@ public class AggregateTest extends SimpleDbTestBase {
         min.open();
         TestUtil.matchAllTuples(min, op);
     }
-}
 
+    /**
+     * Unit test for Aggregate.getNext() computing several aggregates at once
+     */
+    @Test
+    public void multipleAggregates() throws Exception {
+        Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1 }, new Aggregator.Op[] {
+                Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX }, 0);
+        assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+        OpIterator expected = TestUtil.createTupleList(5, new int[] {
+                1, 3, 12, 2, 6,
+                3, 3, 12, 2, 6,
+                5, 1, 7, 7, 7
+        });
+        op.open();
+        expected.open();
+        TestUtil.matchAllTuples(expected, op);
+    }
+
+    /**
+     * Unit test for Aggregate.getNext() with more groups than fit in the
+     * memory budget, which spills partitions to disk
+     */
+    @Test
+    public void spillAggregate() throws Exception {
+        int groups = 1000;
+        int[] data = new int[2 * 3 * groups];
+        for (int i = 0; i < 3 * groups; i++) {
+            data[2 * i] = i % groups;
+            data[2 * i + 1] = i;
+        }
+        Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0, Aggregator.Op.SUM);
+        // room for about 10 groups at a time
+        op.setMemoryBudget(1500);
+        op.open();
+        assertTrue(op.numSpills() > 0);
+
+        for (int pass = 0; pass < 2; pass++) {
+            int[] sums = new int[groups];
+            int results = 0;
+            while (op.hasNext()) {
+                Tuple t = op.next();
+                int group = ((IntField) t.getField(0)).getValue();
+                assertEquals(0, sums[group]);
+                sums[group] = ((IntField) t.getField(1)).getValue();
+                results++;
+            }
+            assertEquals(groups, results);
+            for (int g = 0; g < groups; g++) {
+                assertEquals(3 * g + 3 * groups, sums[g]);
+            }
+            op.rewind();
+        }
+        op.close();
+    }
+
+    /**
+     * Unit test that spilling partitions leaves the record ids of the child
+     * tuples as they were
+     */
+    @Test
+    public void spillKeepsChildRecordIds() throws Exception {
+        int groups = 100;
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 3 * groups; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(width1));
+            t.setField(0, new IntField(i % groups));
+            t.setField(1, new IntField(i));
+            t.setRecordId(new RecordId(new HeapPageId(-1, i), 0));
+            tuples.add(t);
+        }
+        Aggregate op = new Aggregate(new TupleIterator(Utility.getTupleDesc(width1), tuples), 1, 0,
+                Aggregator.Op.SUM);
+        op.setMemoryBudget(1500);
+        op.open();
+        assertTrue(op.numSpills() > 0);
+        while (op.hasNext()) {
+            op.next();
+        }
+        op.close();
+        for (int i = 0; i < tuples.size(); i++) {
+            assertEquals(new RecordId(new HeapPageId(-1, i), 0), tuples.get(i).getRecordId());
+        }
+    }
+}
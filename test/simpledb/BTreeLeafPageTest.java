@@ -302,6 +302,25 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before image is captured on the first modification after
+     * setBeforeImage and reflects the page as it was then.
+     */
+    @Test
+    public void beforeImage() throws Exception {
+        BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+        page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{-1, -2}));
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        page.setRightSiblingId(new BTreePageId(pid.getTableId(), 7, BTreePageId.LEAF));
+        page.deleteTuple(page.iterator().next());
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        assertFalse(Arrays.equals(committed, page.getPageData()));
+    }
+
     /**
      * Unit test for BTreeLeafPage.deleteTuple() with false tuples
      */
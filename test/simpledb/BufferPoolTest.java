@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Small pools use a single partition, larger ones are split.
+     */
+    @Test
+    public void defaultPartitions() {
+        assertEquals(1, new BufferPool(2).getNumPartitions());
+        assertTrue(new BufferPool(1000).getNumPartitions() >= 1);
+        assertEquals(4, new BufferPool(8, ReplacementPolicy.Kind.CLOCK, 4).getNumPartitions());
+    }
+
+    /**
+     * A hit returns the cached page from its partition.
+     */
+    @Test
+    public void hitReturnsCachedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = new BufferPool(8, ReplacementPolicy.Kind.CLOCK, 4);
+        for (int i = 0; i < 4; i++) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertSame(p, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The capacity is global: a partition whose pages are all dirty steals a
+     * frame from another partition instead of failing.
+     */
+    @Test
+    public void evictAcrossPartitions() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(3, ReplacementPolicy.Kind.CLOCK, 3);
+
+        // dirty two pages, then scan the whole table through the third frame
+        for (int i = 0; i < 2; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 10, count);
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * getPage pins, unpinPage unpins, and completing a transaction drops
+     * every pin it still holds.
+     */
+    @Test
+    public void pinCounts() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(4);
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        PageId p1 = new HeapPageId(hf.getId(), 1);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertEquals(2, bp.getNumResidentPages());
+        assertEquals(2, bp.getNumPinnedPages());
+
+        bp.unpinPage(tid, p1);
+        assertEquals(1, bp.getNumPinnedPages());
+        bp.unpinPage(tid, p0);
+        assertEquals(1, bp.getNumPinnedPages());
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getNumPinnedPages());
+        assertEquals(2, bp.getNumResidentPages());
+    }
+
+    /**
+     * Pinned pages are never evicted, even when they are clean.
+     */
+    @Test
+    public void pinnedPagesNotEvicted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        Page pinned = bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        for (int i = 1; i < 4; i++) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.unpinPage(tid, pid);
+        }
+        assertSame(pinned, bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY));
+
+        // with both frames pinned there is nothing left to evict
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Prefetched pages are resident but not pinned, and prefetching pages
+     * that are already resident is a no-op.
+     */
+    @Test
+    public void prefetchPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            pids.add(new HeapPageId(hf.getId(), i));
+        }
+        Page first = bp.getPage(tid, pids.get(0), Permissions.READ_ONLY);
+        bp.prefetchPages(pids);
+        assertEquals(4, bp.getNumResidentPages());
+        assertEquals(1, bp.getNumPinnedPages());
+        assertSame(first, bp.getPage(tid, pids.get(0), Permissions.READ_ONLY));
+
+        bp.prefetchPages(pids);
+        assertEquals(4, bp.getNumResidentPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
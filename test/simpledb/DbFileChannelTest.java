@@ -0,0 +1,69 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+    }
+
+    /**
+     * Writes and appends extend the cached size, reads see what was written.
+     */
+    @Test
+    public void writeAndRead() throws Exception {
+        DbFileChannel channel = new DbFileChannel(file);
+        assertEquals(0, channel.size());
+        channel.write(new byte[]{1, 2, 3, 4}, 4);
+        assertEquals(8, channel.size());
+        assertEquals(8, channel.append(new byte[]{5, 6}));
+        assertEquals(10, channel.size());
+
+        byte[] data = new byte[4];
+        channel.read(data, 4);
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, data);
+        channel.close();
+        assertEquals(10, file.length());
+    }
+
+    /**
+     * Reading past the end of the file fails instead of returning a short
+     * page.
+     */
+    @Test
+    public void readPastEnd() throws Exception {
+        DbFileChannel channel = new DbFileChannel(file);
+        channel.write(new byte[]{1, 2}, 0);
+        try {
+            channel.read(new byte[4], 0);
+            fail("expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+        channel.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
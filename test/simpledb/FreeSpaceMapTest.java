@@ -0,0 +1,69 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * Persisted bits survive reopening the map, pages without a bit are
+     * candidates.
+     */
+    @Test
+    public void persistAndReload() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.persist(0, false, 12);
+        fsm.persist(9, false, 12);
+        fsm.update(1, false);
+        assertEquals(2, fsm.nextFreePage(0, 12));
+        assertEquals(10, fsm.nextFreePage(9, 12));
+        assertEquals(-1, fsm.nextFreePage(12, 12));
+
+        // in-memory updates are not persisted
+        FreeSpaceMap reloaded = new FreeSpaceMap(f);
+        assertEquals(1, reloaded.nextFreePage(0, 12));
+        assertEquals(10, reloaded.nextFreePage(9, 12));
+    }
+
+    /**
+     * Once the full pages are known, inserts do not lock them any more.
+     */
+    @Test
+    public void insertSkipsFullPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 1, null, null);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(3, t.getRecordId().getPageId().getPageNumber());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 3)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -1,9 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -95,6 +97,41 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples handed out by an iterator keep their values when the page is
+     * modified before their fields are read.
+     */
+    @Test
+    public void iteratorTuplesSurviveChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[]{-1, -2}));
+
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) first.getField(0)).getValue());
+        assertEquals(-1, ((IntField) page.getField(0, 0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0],
+                ((IntField) new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).getField(0, 0)).getValue());
+    }
+
+    /**
+     * The before image is captured on the first modification after
+     * setBeforeImage and reflects the page as it was then.
+     */
+    @Test
+    public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(new int[]{-1, -2}));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData().clone();
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        page.deleteTuple(page.iterator().next());
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        assertFalse(Arrays.equals(committed, page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
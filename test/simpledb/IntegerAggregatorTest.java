@@ -121,6 +121,45 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Test IntegerAggregator over many groups, including negative and zero
+     * group values, which keeps running state per group
+     */
+    @Test
+    public void manyGroups() throws Exception {
+        int groups = 5000;
+        IntegerAggregator sumAgg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        IntegerAggregator avgAgg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+        int[] input = new int[3 * groups * width1];
+        int[] sums = new int[2 * groups];
+        int[] avgs = new int[2 * groups];
+        for (int i = 0; i < 3 * groups; i++) {
+            int group = i % groups - groups / 2;
+            input[2 * i] = group;
+            input[2 * i + 1] = i;
+        }
+        for (int g = 0; g < groups; g++) {
+            int sum = g + (g + groups) + (g + 2 * groups);
+            sums[2 * g] = avgs[2 * g] = g - groups / 2;
+            sums[2 * g + 1] = sum;
+            avgs[2 * g + 1] = sum / 3;
+        }
+        OpIterator scan = TestUtil.createTupleList(width1, input);
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tup = scan.next();
+            sumAgg.mergeTupleIntoGroup(tup);
+            avgAgg.mergeTupleIntoGroup(tup);
+        }
+
+        OpIterator it = sumAgg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(width1, sums), it);
+        it = avgAgg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(width1, avgs), it);
+    }
+
     /**
      * Test IntegerAggregator.iterator() for OpIterator behaviour
      */
@@ -1,10 +1,16 @@
 package simpledb;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -193,5 +199,192 @@ public class LockingTest extends TestUtil.CreateHeapFile {
         bp.getPage(tid1, p1, Permissions.READ_WRITE);
     }
 
-}
+    /**
+     * A transaction that waits longer than any timeout, but is not
+     * deadlocked, gets the lock once the holder completes.
+     */
+    @Test
+    public void longWaitIsNotAborted() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        t.start();
 
+        Thread.sleep(10 * TIMEOUT);
+        assertFalse(t.acquired());
+        assertNull(t.getError());
+
+        bp.transactionComplete(tid1);
+        t.join(10 * TIMEOUT);
+        assertTrue(t.acquired());
+    }
+
+    /**
+     * Hundreds of writers queued on one page wait for each other, but their
+     * deadlock checks must not hold up the lock table: once the holder
+     * completes, every writer gets the page in turn, and none is aborted.
+     */
+    @Test(timeout = 60000)
+    public void manyWaitersOnOnePage() throws Exception {
+        final int waiters = 500;
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(waiters);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        for (int i = 0; i < waiters; i++) {
+            new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    bp.getPage(tid, p0, Permissions.READ_WRITE);
+                    bp.transactionComplete(tid);
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(10 * TIMEOUT);
+        assertEquals(waiters, done.getCount());
+        bp.transactionComplete(tid1);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(error.get());
+    }
+
+    /**
+     * Waiting requests are granted in arrival order: a read request behind a
+     * waiting write request does not overtake it.
+     */
+    @Test
+    public void waitersAreGrantedInOrder() throws Exception {
+        TransactionId tid3 = new TransactionId();
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+        assertFalse(reader.acquired());
+
+        bp.transactionComplete(tid1);
+        writer.join(10 * TIMEOUT);
+        assertTrue(writer.acquired());
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+
+        bp.transactionComplete(tid2);
+        reader.join(10 * TIMEOUT);
+        assertTrue(reader.acquired());
+        assertNull(reader.getError());
+    }
+
+    /**
+     * A reader that locks more pages of a table than the escalation
+     * threshold gets a shared table lock: other readers can still read the
+     * table, writers cannot write any of its pages.
+     */
+    @Test
+    public void readLocksEscalateToTableLock() throws Exception {
+        bp.setLockEscalationThreshold(1);
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        // p2 is covered by the table lock
+        assertTrue(bp.holdsLock(tid1, p2));
+
+        grabLock(tid2, p2, Permissions.READ_ONLY, true);
+        grabLock(tid2, p2, Permissions.READ_WRITE, false);
+    }
+
+    /**
+     * A writer that escalates gets an exclusive table lock, and its dirty
+     * pages are still flushed when it commits although it holds no page
+     * locks any more.
+     */
+    @Test
+    public void writeLocksEscalateToTableLock() throws Exception {
+        bp.setLockEscalationThreshold(1);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        Page page = bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        page.markDirty(true, tid1);
+        assertTrue(bp.holdsLock(tid1, p2));
+        grabLock(tid2, p2, Permissions.READ_ONLY, false);
+
+        bp.transactionComplete(tid1);
+        assertNull(page.isDirty());
+        grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    }
+
+    /**
+     * Escalation never waits: while another transaction holds an intention
+     * lock that conflicts, the page locks are kept.
+     */
+    @Test
+    public void escalationSkippedOnConflict() throws Exception {
+        bp.setLockEscalationThreshold(1);
+        bp.getPage(tid2, p2, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid1, p1, Permissions.READ_WRITE);
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertFalse(bp.holdsLock(tid1, p2));
+        grabLock(tid2, p2, Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * Under wait-die, a younger transaction that conflicts with an older one
+     * is aborted at once, while an older one waits for a younger one.
+     */
+    @Test
+    public void waitDieAbortsYoungerRequester() throws Exception {
+        bp.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber younger = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        younger.start();
+        younger.join(TIMEOUT);
+        assertFalse(younger.acquired());
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+
+        grabLock(tid1, p1, Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * Under wait-die, a younger writer dies when it conflicts with an older
+     * reader, also when the read lock was granted without the queue.
+     */
+    @Test
+    public void waitDieSeesUncontendedReaders() throws Exception {
+        bp.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber younger = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        younger.start();
+        younger.join(TIMEOUT);
+        assertFalse(younger.acquired());
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+    }
+
+    /**
+     * Under wound-wait, an older transaction wounds the younger holder it
+     * waits for: the holder is aborted at its next lock request and the
+     * older transaction gets the lock once the holder is rolled back.
+     */
+    @Test
+    public void woundWaitAbortsYoungerHolder() throws Exception {
+        bp.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        bp.getPage(tid2, p0, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber older = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+        older.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(older.acquired());
+
+        TestUtil.LockGrabber wounded = new TestUtil.LockGrabber(tid2, p1, Permissions.READ_WRITE);
+        wounded.start();
+        older.join(10 * TIMEOUT);
+        assertTrue(wounded.getError() instanceof TransactionAbortedException);
+        assertTrue(older.acquired());
+        assertNull(older.getError());
+    }
+
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private MappedHeapFile mhf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 3 + 10, 1 << 16, null, tuples);
+        mhf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mhf, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages read from the mapping hold the same tuples as the file.
+     */
+    @Test
+    public void readPages() throws Exception {
+        assertEquals(4, mhf.numPages());
+        HeapPage page = (HeapPage) mhf.readPage(new HeapPageId(mhf.getId(), 3));
+        assertEquals(504 - 10, page.getNumEmptySlots());
+        SystemTestUtil.matchTuples(mhf, tid, tuples);
+    }
+
+    /**
+     * Pages appended after the file was mapped are read from a new mapping.
+     */
+    @Test
+    public void remapOnGrowth() throws Exception {
+        mhf.readPage(new HeapPageId(mhf.getId(), 0));
+        HeapPage extra = new HeapPage(new HeapPageId(mhf.getId(), 4), HeapPage.createEmptyPageData());
+        Tuple t = Utility.getHeapTuple(new int[]{7, 8});
+        extra.insertTuple(t);
+        mhf.writePage(extra);
+
+        assertEquals(5, mhf.numPages());
+        HeapPage page = (HeapPage) mhf.readPage(new HeapPageId(mhf.getId(), 4));
+        assertEquals(504 - 1, page.getNumEmptySlots());
+        assertEquals(new IntField(8), page.iterator().next().getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
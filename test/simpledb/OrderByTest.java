@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    int width = 2;
+    int rows = 1000;
+    int[] data;
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createData() {
+        // (random key, row number)
+        Random random = new Random(42);
+        this.data = new int[width * rows];
+        for (int i = 0; i < rows; i++) {
+            this.data[width * i] = random.nextInt(50);
+            this.data[width * i + 1] = i;
+        }
+    }
+
+    /**
+     * @return the rows of data sorted by key ascending, then by row number
+     * ascending or descending
+     */
+    private long[] sorted(boolean rowAsc) {
+        long[] rows = new long[this.rows];
+        for (int i = 0; i < this.rows; i++) {
+            rows[i] = ((long) data[width * i] << 32) | (rowAsc ? i : this.rows - i);
+        }
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    private void checkOrder(OrderBy op, boolean rowAsc) throws Exception {
+        long[] expected = sorted(rowAsc);
+        for (int pass = 0; pass < 2; pass++) {
+            for (long row : expected) {
+                assertTrue(op.hasNext());
+                Tuple t = op.next();
+                assertEquals((int) (row >>> 32), ((IntField) t.getField(0)).getValue());
+                int i = (int) row;
+                assertEquals(rowAsc ? i : this.rows - i, ((IntField) t.getField(1)).getValue());
+            }
+            assertTrue(TestUtil.checkExhausted(op));
+            op.rewind();
+        }
+    }
+
+    /**
+     * Unit test for OrderBy.getNext() sorting in memory
+     */
+    @Test
+    public void sortInMemory() throws Exception {
+        OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(width, data));
+        op.open();
+        assertEquals(0, op.numRuns());
+        // the sort is stable, so rows with equal keys keep their order
+        checkOrder(op, true);
+        op.close();
+    }
+
+    /**
+     * Unit test for OrderBy.getNext() sorting by two fields
+     */
+    @Test
+    public void sortByTwoFields() throws Exception {
+        OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                TestUtil.createTupleList(width, data));
+        op.open();
+        checkOrder(op, false);
+        op.close();
+    }
+
+    /**
+     * Unit test for OrderBy.getNext() with more tuples than fit in the memory
+     * budget, which sorts runs on disk and merges them, several at a time
+     */
+    @Test
+    public void externalSort() throws Exception {
+        OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(width, data));
+        // room for about 10 tuples at a time, and merging 2 runs at a time
+        op.setMemoryBudget(1000);
+        op.open();
+        assertTrue(op.numRuns() > 50);
+        checkOrder(op, true);
+        op.close();
+
+        op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, TestUtil.createTupleList(width, data));
+        op.setMemoryBudget(1000);
+        op.open();
+        checkOrder(op, false);
+        op.close();
+    }
+
+    // the record id of a row: none, or on a heap or a B+ tree page
+    private RecordId recordId(int row) {
+        switch (row % 3) {
+        case 0:
+            return null;
+        case 1:
+            return new RecordId(new HeapPageId(-1, row), row % 7);
+        default:
+            return new RecordId(new BTreePageId(-1, row, BTreePageId.LEAF), row % 7);
+        }
+    }
+
+    /**
+     * Unit test that tuples sorted on disk keep the record ids they had
+     */
+    @Test
+    public void externalSortKeepsRecordIds() throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(width));
+            t.setField(0, new IntField(data[width * i]));
+            t.setField(1, new IntField(i));
+            t.setRecordId(recordId(i));
+            tuples.add(t);
+        }
+        OrderBy op = new OrderBy(0, true, new TupleIterator(Utility.getTupleDesc(width), tuples));
+        op.setMemoryBudget(1000);
+        op.open();
+        assertTrue(op.numRuns() > 50);
+        int returned = 0;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            int row = ((IntField) t.getField(1)).getValue();
+            assertEquals(recordId(row), t.getRecordId());
+            returned++;
+        }
+        assertEquals(rows, returned);
+        op.close();
+        for (int i = 0; i < rows; i++) {
+            assertEquals(recordId(i), tuples.get(i).getRecordId());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY = pid -> true;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockPolicy: referenced pages get a second chance.
+     */
+    @Test
+    public void clockSecondChance() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.CLOCK.create(3);
+        for (int i = 0; i < 3; i++) {
+            policy.pageAdded(pid(i));
+        }
+        // first sweep clears every bit, so the oldest page is the victim
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        assertEquals(2, policy.size());
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages with fewer than K references go first.
+     */
+    @Test
+    public void lruKPrefersInfiniteDistance() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.LRU_K.create(3);
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        policy.pageAccessed(pid(0));
+        policy.pageAdded(pid(2));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a re-read page in the ghost queue is promoted.
+     */
+    @Test
+    public void twoQPromotesGhosts() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.TWO_Q.create(4);
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageEvicted(pid(0));
+        // pid(0) comes back while it is remembered in A1out, so it goes to Am
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(2));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a discarded page is not remembered in A1out.
+     */
+    @Test
+    public void twoQForgetsDiscarded() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.TWO_Q.create(8);
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        policy.pageRemoved(pid(0));
+        assertEquals(1, policy.size());
+        // pid(0) comes back as a new page, so it goes to A1in behind pid(1)
+        // rather than to Am, and A1in overflows first
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(2));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Every policy must honour the eviction filter.
+     */
+    @Test
+    public void filterRespected() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(8);
+            for (int i = 0; i < 8; i++) {
+                policy.pageAdded(pid(i));
+            }
+            Set<PageId> pinned = new HashSet<>();
+            for (int i = 0; i < 7; i++) {
+                pinned.add(pid(i));
+            }
+            assertEquals(kind.name(), pid(7), policy.chooseVictim(pid -> !pinned.contains(pid)));
+            assertNull(kind.name(), policy.chooseVictim(pid -> false));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool with every policy: scans larger than the pool
+     * still work.
+     */
+    @Test
+    public void bufferPoolEvicts() throws Exception {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+            Database.resetBufferPool(3, kind);
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(504 * 6, count);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE},
+            new String[]{"id", "name"});
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Fills the page with tuples of the given name until it is full.
+     *
+     * @return the tuples on the page
+     */
+    private static ArrayList<Tuple> fill(HeapPage page, String name) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (true) {
+            Tuple t = tuple(tuples.size(), name);
+            try {
+                page.insertTuple(t);
+            } catch (DbException e) {
+                return tuples;
+            }
+            tuples.add(t);
+        }
+    }
+
+    /**
+     * Short strings are stored with their length, so many more tuples fit
+     * than in the fixed layout, and they read back from the page bytes.
+     */
+    @Test
+    public void insertAndRead() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int maxSizeTuples = page.getNumEmptySlots();
+        ArrayList<Tuple> tuples = fill(page, "ab");
+        assertEquals(0, page.getNumEmptySlots());
+        assertTrue(tuples.size() > 5 * maxSizeTuples);
+        assertTrue(tuples.size() > 5 * new HeapPage(pid, HeapPage.createEmptyPageData()).getNumEmptySlots());
+
+        SlottedHeapPage reread = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = reread.iterator();
+        for (Tuple expected : tuples) {
+            Tuple actual = it.next();
+            assertEquals(expected.getRecordId(), actual.getRecordId());
+            assertEquals(expected.getField(0), actual.getField(0));
+            assertEquals("ab", ((StringField) actual.getField(1)).getValue());
+        }
+        assertTrue(!it.hasNext());
+    }
+
+    /**
+     * Deleted space is reused by compacting the tuple area, and tuples that
+     * stay on the page keep their slots.
+     */
+    @Test
+    public void deleteAndCompact() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        ArrayList<Tuple> tuples = fill(page, "abcdefgh");
+        for (int i = 0; i < tuples.size(); i += 2) {
+            page.deleteTuple(tuples.get(i));
+        }
+        page.setBeforeImage();
+        byte[] before = page.getPageData().clone();
+
+        char[] chars = new char[Type.STRING_LEN];
+        Arrays.fill(chars, 'x');
+        String longName = new String(chars);
+        ArrayList<Tuple> added = fill(page, longName);
+        assertTrue(added.size() > 0);
+        assertTrue(Arrays.equals(before, page.getBeforeImage().getPageData()));
+
+        for (int i = 1; i < tuples.size(); i += 2) {
+            int slot = tuples.get(i).getRecordId().getTupleNumber();
+            assertEquals(i, ((IntField) page.getField(slot, 0)).getValue());
+            assertEquals("abcdefgh", ((StringField) page.getField(slot, 1)).getValue());
+        }
+        for (Tuple t : added) {
+            assertEquals(longName, ((StringField) page.getField(t.getRecordId().getTupleNumber(), 1)).getValue());
+        }
+    }
+
+    /**
+     * Tables declared slotted in the catalog store their tuples in slotted
+     * pages.
+     */
+    @Test
+    public void slottedTable() throws Exception {
+        File dir = File.createTempFile("slotted", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        new File(dir, "people.dat").deleteOnExit();
+        new File(dir, "people.dat.fsm").deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("people (id int, name string) slotted\n");
+        w.close();
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        int tableId = Database.getCatalog().getTableId("people");
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        assertTrue(hf instanceof SlottedHeapFile);
+
+        TransactionId tid = new TransactionId();
+        TupleDesc td = hf.getTupleDesc();
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("p" + i, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, tableId, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // the fixed layout would need 34 pages for these tuples
+        assertTrue(hf.numPages() <= 6);
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("p" + ((IntField) t.getField(0)).getValue(), ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
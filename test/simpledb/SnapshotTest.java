@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        this.bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = this.hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * A snapshot reads pages that an uncommitted writer holds exclusive
+     * locks on, without waiting, and does not see the writer's changes.
+     */
+    @Test
+    public void readsDoNotBlockOnWriters() throws Exception {
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            this.bp.insertTuple(writer, this.hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        HeapPageId p0 = new HeapPageId(this.hf.getId(), 0);
+        this.bp.getPage(writer, p0, Permissions.READ_WRITE);
+
+        TransactionId reader = new TransactionId();
+        this.bp.beginSnapshot(reader);
+        assertEquals(1000, count(reader));
+        assertFalse(this.bp.holdsLock(reader, p0));
+        this.bp.transactionComplete(reader);
+        this.bp.transactionComplete(writer, false);
+    }
+
+    /**
+     * Commits after the snapshot began are not visible, even once the
+     * changed pages have been written and dropped from the pool; a new
+     * snapshot sees them, and versions are dropped with the last snapshot.
+     */
+    @Test
+    public void laterCommitsAreNotVisible() throws Exception {
+        TransactionId reader = new TransactionId();
+        this.bp.beginSnapshot(reader);
+        assertEquals(1000, count(reader));
+
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            this.bp.insertTuple(writer, this.hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        this.bp.transactionComplete(writer);
+        for (int i = 0; i < this.hf.numPages(); i++) {
+            this.bp.discardPage(new HeapPageId(this.hf.getId(), i));
+        }
+
+        assertEquals(1000, count(reader));
+        TransactionId later = new TransactionId();
+        this.bp.beginSnapshot(later);
+        assertEquals(1010, count(later));
+
+        this.bp.transactionComplete(reader);
+        this.bp.transactionComplete(later);
+        assertEquals(0, this.bp.getNumPageVersions());
+    }
+
+    /**
+     * Without snapshots, commits keep no versions.
+     */
+    @Test
+    public void noVersionsWithoutSnapshots() throws Exception {
+        TransactionId writer = new TransactionId();
+        this.bp.insertTuple(writer, this.hf.getId(), Utility.getHeapTuple(1, 2));
+        this.bp.transactionComplete(writer);
+        assertEquals(0, this.bp.getNumPageVersions());
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test
+    public void snapshotsCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        this.bp.beginSnapshot(reader);
+        try {
+            this.bp.insertTuple(reader, this.hf.getId(), Utility.getHeapTuple(1, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        this.bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    int width = 2;
+    int rows = 1000;
+    int[] data;
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+
+    /**
+     * Initialize each unit test
+     */
+    @Before
+    public void createData() {
+        // (random key, row number)
+        Random random = new Random(7);
+        this.data = new int[width * rows];
+        for (int i = 0; i < rows; i++) {
+            this.data[width * i] = random.nextInt(50);
+            this.data[width * i + 1] = i;
+        }
+    }
+
+    /**
+     * Checks that op returns the first n tuples that an OrderBy over the
+     * same tuples returns, twice, rewinding in between.
+     */
+    private void matchOrderBy(TopN op, int[] fields, boolean[] asc, int n) throws Exception {
+        OrderBy expected = new OrderBy(fields, asc, TestUtil.createTupleList(width, data));
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+            expected.open();
+            for (int i = 0; i < Math.min(n, rows); i++) {
+                assertTrue(op.hasNext());
+                assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+            }
+            assertTrue(TestUtil.checkExhausted(op));
+            expected.close();
+            op.rewind();
+        }
+        op.close();
+    }
+
+    /**
+     * Unit test for TopN.getNext() against a full sort
+     */
+    @Test
+    public void firstTuplesInOrder() throws Exception {
+        int[] fields = { 0 };
+        for (boolean asc : new boolean[] { true, false }) {
+            for (int n : new int[] { 1, 10, 100, rows, 2 * rows }) {
+                // ties keep the order of the child, as they do in OrderBy
+                TopN op = new TopN(fields, new boolean[] { asc }, n, TestUtil.createTupleList(width, data));
+                matchOrderBy(op, fields, new boolean[] { asc }, n);
+            }
+        }
+    }
+
+    /**
+     * Unit test for TopN.getNext() sorting by two fields
+     */
+    @Test
+    public void twoFields() throws Exception {
+        int[] fields = { 0, 1 };
+        boolean[] asc = { false, false };
+        matchOrderBy(new TopN(fields, asc, 20, TestUtil.createTupleList(width, data)), fields, asc, 20);
+    }
+
+    /**
+     * Unit test for TopN.getNext() with a limit of 0
+     */
+    @Test
+    public void noTuples() throws Exception {
+        TopN op = new TopN(new int[] { 0 }, new boolean[] { true }, 0, TestUtil.createTupleList(width, data));
+        op.open();
+        assertTrue(TestUtil.checkExhausted(op));
+        op.close();
+    }
+
+    /**
+     * Unit test for Limit.getNext()
+     */
+    @Test
+    public void limit() throws Exception {
+        Limit op = new Limit(3, new TestUtil.MockScan(0, 10, width));
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(op.hasNext());
+                assertEquals(Utility.getHeapTuple(i, width).getField(0), op.next().getField(0));
+            }
+            assertTrue(TestUtil.checkExhausted(op));
+            op.rewind();
+        }
+        op.close();
+    }
+}
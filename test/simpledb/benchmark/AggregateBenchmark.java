@@ -0,0 +1,152 @@
+package simpledb.benchmark;
+
+import simpledb.Aggregate;
+import simpledb.Aggregator;
+import simpledb.IntField;
+import simpledb.OpIterator;
+import simpledb.Operator;
+import simpledb.Tuple;
+import simpledb.TupleDesc;
+import simpledb.Utility;
+
+/**
+ * Measures grouped aggregation over generated tuples, which are not kept
+ * anywhere but in the aggregate: the time to aggregate, and the heap still
+ * in use once the aggregate is open, which is what the aggregate retains.
+ * Each count of groups is also run with a memory budget of a tenth of what
+ * its groups take, which spills most of them to disk, and COUNT, SUM, MIN and
+ * MAX are computed by one aggregate and by four.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=AggregateBenchmark
+ * [-Dargs="rows groups..."]
+ */
+public class AggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int[] groupCounts = {1, 1000, 100000};
+        if (args.length > 1) {
+            groupCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                groupCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%d rows%n", rows);
+        for (int groups : groupCounts) {
+            for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.AVG}) {
+                // warm up, then measure
+                run(rows, groups, op, Aggregate.DEFAULT_MEMORY_BUDGET);
+                run(rows, groups, op, Aggregate.DEFAULT_MEMORY_BUDGET);
+            }
+            if (groups > 1) {
+                run(rows, groups, Aggregator.Op.SUM, groups * 132L / 10);
+            }
+            // warm up, then measure
+            runFour(rows, groups);
+            runFour(rows, groups);
+        }
+    }
+
+    private static void run(int rows, int groups, Aggregator.Op op, long budget) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        Aggregate agg = new Aggregate(new Rows(rows, groups), 1, groups == 1 ? Aggregator.NO_GROUPING : 0, op);
+        agg.setMemoryBudget(budget);
+        agg.open();
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long retained = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - before);
+        int results = 0;
+        while (agg.hasNext()) {
+            agg.next();
+            results++;
+        }
+        long total = System.nanoTime() - start;
+        System.out.printf("%-4s %7d groups %8.1f ms %8.1f MB retained, %8.1f ms in all, %d spills (%d results)%n",
+                op, groups, elapsed / 1e6, retained / 1e6, total / 1e6, agg.numSpills(), results);
+        agg.close();
+    }
+
+    private static void runFour(int rows, int groups) throws Exception {
+        Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX };
+        int gfield = groups == 1 ? Aggregator.NO_GROUPING : 0;
+        long start = System.nanoTime();
+        Aggregate agg = new Aggregate(new Rows(rows, groups), new int[] { 1, 1, 1, 1 }, ops, gfield);
+        drain(agg);
+        long together = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Aggregator.Op op : ops) {
+            drain(new Aggregate(new Rows(rows, groups), 1, gfield, op));
+        }
+        long apart = System.nanoTime() - start;
+        System.out.printf("count, sum, min, max %7d groups %8.1f ms in one pass, %8.1f ms in four%n", groups,
+                together / 1e6, apart / 1e6);
+    }
+
+    private static void drain(Aggregate agg) throws Exception {
+        agg.open();
+        while (agg.hasNext()) {
+            agg.next();
+        }
+        agg.close();
+    }
+
+    /**
+     * Generates (i % groups, i) for i below rows.
+     */
+    private static class Rows extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int rows;
+        private final int groups;
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private int next;
+
+        Rows(int rows, int groups) {
+            this.rows = rows;
+            this.groups = groups;
+        }
+
+        @Override
+        public void open() throws simpledb.DbException, simpledb.TransactionAbortedException {
+            this.next = 0;
+            super.open();
+        }
+
+        @Override
+        public void rewind() {
+            this.next = 0;
+        }
+
+        @Override
+        protected Tuple fetchNext() {
+            if (this.next == this.rows) {
+                return null;
+            }
+            Tuple tuple = new Tuple(this.td);
+            tuple.setField(0, new IntField(this.next % this.groups));
+            tuple.setField(1, new IntField(this.next));
+            this.next++;
+            return tuple;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return this.td;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.HeapFile;
+import simpledb.LogFile;
+import simpledb.Transaction;
+import simpledb.Utility;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures commit throughput with the log on disk. Each thread runs
+ * transactions that insert one tuple into a table of its own and commit, so
+ * there are no lock conflicts and every commit writes an update record and a
+ * commit record that must be forced before it returns. Reports the log
+ * bytes written per commit alongside the throughput. Background
+ * checkpoints are taken every checkpointKB of log, and truncate it by
+ * deleting whole segments.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=CommitBenchmark
+ * [-Dargs="maxThreads seconds checkpointKB"]
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long checkpointBytes = args.length > 2 ? Long.parseLong(args[2]) * 1024 : LogFile.DEFAULT_CHECKPOINT_BYTES;
+
+        System.out.printf("%d s per run, %d cpus%n", seconds, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Database.reset();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            Database.getLogFile().setCheckpointBytes(checkpointBytes);
+            List<HeapFile> tables = new ArrayList<HeapFile>();
+            for (int t = 0; t < threads; t++) {
+                tables.add(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+            }
+            int forces = Database.getLogFile().getNumForces();
+            double rate = run(tables, seconds);
+            forces = Database.getLogFile().getNumForces() - forces;
+            // every commit has returned, so the whole log is on disk
+            long logBytes = Database.getLogFile().getTotalBytes();
+            long logFileBytes = 0;
+            for (File segment : new File("log").listFiles()) {
+                logFileBytes += segment.length();
+            }
+            System.out.printf("%2d threads %8.0f commits/s, %6.2f forces per commit, %6.0f log bytes per commit, "
+                    + "%6d KB in %d log segments%n", threads, rate, forces / (rate * seconds),
+                    logBytes / (rate * seconds), logFileBytes / 1024, Database.getLogFile().getNumSegments());
+        }
+    }
+
+    /**
+     * @return commits per second over all threads
+     */
+    private static double run(List<HeapFile> tables, int seconds) throws Exception {
+        AtomicLong commits = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (HeapFile table : tables) {
+            Thread worker = new Thread(() -> {
+                long done = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                Utility.getHeapTuple((int) done, 2));
+                        t.commit();
+                        done++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                commits.addAndGet(done);
+            });
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return commits.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
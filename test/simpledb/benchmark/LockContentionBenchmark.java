@@ -0,0 +1,110 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.HeapFile;
+import simpledb.HeapPageId;
+import simpledb.LockManager;
+import simpledb.Permissions;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs short transactions that write-lock a few pages out of a small hot set
+ * in random order, under each deadlock policy of the lock manager. A
+ * transaction that is aborted is retried after a 1 ms back-off, with a
+ * TransactionId that keeps its age, until it commits; its latency is
+ * measured from the first attempt to the commit.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=LockContentionBenchmark
+ * [-Dargs="threads hotPages pagesPerTxn seconds"]
+ */
+public class LockContentionBenchmark {
+
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int pagesPerTxn = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, hotPages * TUPLES_PER_PAGE, null, null);
+        System.out.printf("%d threads, %d of %d hot pages per transaction, %d s per policy%n",
+                threads, pagesPerTxn, hotPages, seconds);
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            run(table, policy, threads, hotPages, pagesPerTxn, seconds);
+        }
+    }
+
+    private static void run(HeapFile table, LockManager.DeadlockPolicy policy, int threads, int hotPages,
+            int pagesPerTxn, int seconds) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setDeadlockPolicy(policy);
+        AtomicLong aborts = new AtomicLong();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    List<Integer> pages = new ArrayList<Integer>();
+                    for (int i = 0; i < hotPages; i++) {
+                        pages.add(i);
+                    }
+                    Collections.shuffle(pages, random);
+                    long start = System.nanoTime();
+                    TransactionId tid = new TransactionId();
+                    while (true) {
+                        try {
+                            for (int i = 0; i < pagesPerTxn; i++) {
+                                HeapPageId pid = new HeapPageId(table.getId(), pages.get(i));
+                                Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                                // some work while holding the lock
+                                Thread.sleep(1);
+                            }
+                            Database.getBufferPool().transactionComplete(tid, true);
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            abort(tid);
+                            tid = new TransactionId(tid);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    latencies.add(System.nanoTime() - start);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Collections.sort(latencies);
+        int commits = latencies.size();
+        System.out.printf("%-10s %7.0f commits/s, %6d aborts, p50 %6.1f ms, p99 %6.1f ms, max %6.1f ms%n",
+                policy, commits / (double) seconds, aborts.get(),
+                latencies.get(commits / 2) / 1e6, latencies.get(commits * 99 / 100) / 1e6,
+                latencies.get(commits - 1) / 1e6);
+    }
+
+    private static void abort(TransactionId tid) {
+        try {
+            Database.getBufferPool().transactionComplete(tid, false);
+            Thread.sleep(1);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.HeapPageId;
+import simpledb.LockManager;
+import simpledb.PageId;
+import simpledb.Permissions;
+import simpledb.TransactionId;
+
+/**
+ * Measures the throughput of the lock table itself, without a buffer pool
+ * or files. Each thread runs transactions that lock a few pages, request
+ * each of them again a few times, as operators that revisit pages do, and
+ * release everything. In the shared workload all threads read-lock the same
+ * pages; in the exclusive workload each thread write-locks pages of its own,
+ * so there are never conflicts and any slowdown with more threads comes from
+ * the lock table. With one request per page, every request is the first of
+ * its transaction on its page and goes to the lock table.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=LockTableBenchmark
+ * [-Dargs="maxThreads pagesPerTxn requestsPerPage seconds"]
+ */
+public class LockTableBenchmark {
+
+    private static final int TABLE_ID = 1;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pagesPerTxn = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requestsPerPage = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        System.out.printf("%d pages per transaction, %d requests per page, %d s per run, %d cpus%n",
+                pagesPerTxn, requestsPerPage, seconds, Runtime.getRuntime().availableProcessors());
+        for (Permissions perm : new Permissions[]{Permissions.READ_ONLY, Permissions.READ_WRITE}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                // warm up, then measure
+                run(perm, threads, pagesPerTxn, requestsPerPage, 1);
+                double rate = run(perm, threads, pagesPerTxn, requestsPerPage, seconds);
+                System.out.printf("%-10s %2d threads %8.2f M requests/s%n",
+                        perm == Permissions.READ_ONLY ? "shared" : "exclusive", threads, rate / 1e6);
+            }
+        }
+    }
+
+    /**
+     * @return lock requests per second over all threads
+     */
+    private static double run(Permissions perm, int threads, int pagesPerTxn, int requestsPerPage, int seconds)
+            throws Exception {
+        LockManager lockMgr = new LockManager();
+        AtomicLong requests = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            List<PageId> pages = new ArrayList<PageId>();
+            for (int i = 0; i < pagesPerTxn; i++) {
+                int pageNo = perm == Permissions.READ_ONLY ? i : t * pagesPerTxn + i;
+                pages.add(new HeapPageId(TABLE_ID, pageNo));
+            }
+            Thread worker = new Thread(() -> {
+                long done = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        for (int r = 0; r < requestsPerPage; r++) {
+                            for (PageId pid : pages) {
+                                lockMgr.aquireLock(tid, pid, perm);
+                            }
+                        }
+                        lockMgr.releaseLock(tid);
+                        done += requestsPerPage * pages.size();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                requests.addAndGet(done);
+            });
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return requests.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
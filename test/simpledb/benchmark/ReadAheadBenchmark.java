@@ -0,0 +1,69 @@
+package simpledb.benchmark;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.DbFileIterator;
+import simpledb.HeapFile;
+import simpledb.IntField;
+import simpledb.TransactionId;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures full scan throughput of a HeapFile with and without read-ahead.
+ * Every scan starts with an empty buffer pool. The data file is usually in
+ * the OS page cache, so the gain shown here comes from overlapping reads and
+ * page decoding with the scan; on a cold disk it is larger.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=ReadAheadBenchmark [-Dargs="pages runs"]
+ */
+public class ReadAheadBenchmark {
+
+    private static final int TUPLES_PER_PAGE = 992;
+    private static final int POOL_PAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println("Creating a table with " + pages + " pages");
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, pages * TUPLES_PER_PAGE, null, null);
+
+        int[] windows = {0, BufferPool.DEFAULT_READ_AHEAD_PAGES, 32};
+        // warm up the JIT and the OS page cache
+        for (int window : windows) {
+            scan(table, window);
+        }
+        for (int window : windows) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                best = Math.min(best, scan(table, window));
+            }
+            System.out.printf("read-ahead %3d pages: best scan %7.1f ms, %8.0f pages/s%n",
+                    window, best / 1e6, pages / (best / 1e9));
+        }
+    }
+
+    /**
+     * @return the time a full scan took in nanoseconds
+     */
+    private static long scan(HeapFile table, int window) throws Exception {
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setReadAheadPages(window);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        long sum = 0;
+        while (it.hasNext()) {
+            sum += ((IntField) it.next().getField(0)).getValue();
+        }
+        it.close();
+        long elapsed = System.nanoTime() - start;
+        pool.transactionComplete(tid);
+        if (sum == 42) {
+            // keeps the loop from being optimized away
+            System.out.println();
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.HeapFile;
+import simpledb.Transaction;
+import simpledb.Utility;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures restart time. Builds a log of single-tuple insert transactions
+ * over several tables, with background checkpoints off so that recovery
+ * has to redo the whole log, and then recovers from it repeatedly with an
+ * increasing number of redo threads. Recovery is idempotent, so each run
+ * starts from the same log.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=RecoveryBenchmark
+ * [-Dargs="transactions tables maxThreads"]
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int tables = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        Database.reset();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().setCheckpointBytes(0);
+        List<File> files = new ArrayList<File>();
+        List<Thread> loaders = new ArrayList<Thread>();
+        for (int t = 0; t < tables; t++) {
+            HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+            files.add(table.getFile());
+            int count = transactions / tables;
+            loaders.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Transaction txn = new Transaction();
+                        txn.start();
+                        Database.getBufferPool().insertTuple(txn.getId(), table.getId(), Utility.getHeapTuple(i, 2));
+                        txn.commit();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread loader : loaders) {
+            loader.start();
+        }
+        for (Thread loader : loaders) {
+            loader.join();
+        }
+        long logBytes = Database.getLogFile().getTotalBytes();
+
+        System.out.printf("%d transactions over %d tables, %d KB of log, %d cpus%n", transactions, tables,
+                logBytes / 1024, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // warm up, then measure
+            recover(files, threads);
+            long elapsed = recover(files, threads);
+            System.out.printf("%2d redo threads %8.1f ms, %6.1f MB/s of log%n", threads, elapsed / 1e6,
+                    logBytes / (elapsed / 1e3));
+        }
+    }
+
+    /**
+     * Restarts the database as after a crash and recovers it.
+     *
+     * @return the time recovery took, in nanoseconds
+     */
+    private static long recover(List<File> files, int threads) throws Exception {
+        Database.reset();
+        for (File file : files) {
+            Utility.openHeapFile(2, file);
+        }
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return System.nanoTime() - start;
+    }
+}
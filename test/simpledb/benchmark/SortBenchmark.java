@@ -0,0 +1,144 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+
+import simpledb.IntField;
+import simpledb.Limit;
+import simpledb.OpIterator;
+import simpledb.Operator;
+import simpledb.OrderBy;
+import simpledb.TopN;
+import simpledb.Tuple;
+import simpledb.TupleDesc;
+import simpledb.Utility;
+
+/**
+ * Measures ORDER BY over generated tuples in random order, which are not
+ * kept anywhere but in the sort: the time to sort and read the result, and
+ * the heap still in use once the sort is open, which is what the sort
+ * retains. Each run sorts with the default memory budget and with a budget
+ * that keeps every tuple in memory; then the first 20 tuples are taken by a
+ * TopN and by an OrderBy followed by a Limit.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=SortBenchmark [-Dargs="rows..."]
+ */
+public class SortBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] rowCounts = {1000000, 4000000};
+        if (args.length > 0) {
+            rowCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                rowCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int rows : rowCounts) {
+            for (long budget : new long[]{OrderBy.DEFAULT_MEMORY_BUDGET, Long.MAX_VALUE}) {
+                // warm up, then measure
+                run(rows, budget);
+                run(rows, budget);
+            }
+            // warm up, then measure
+            runTop(rows, 20);
+            runTop(rows, 20);
+        }
+    }
+
+    private static void runTop(int rows, int n) throws Exception {
+        long start = System.nanoTime();
+        drain(new TopN(new int[]{0, 1}, new boolean[]{true, true}, n, new Rows(rows)));
+        long top = System.nanoTime() - start;
+        start = System.nanoTime();
+        drain(new Limit(n, new OrderBy(new int[]{0, 1}, new boolean[]{true, true}, new Rows(rows))));
+        long sorted = System.nanoTime() - start;
+        System.out.printf("%8d rows, first %d: %8.1f ms by TopN, %8.1f ms by OrderBy and Limit%n", rows, n,
+                top / 1e6, sorted / 1e6);
+    }
+
+    private static void drain(Operator op) throws Exception {
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+        }
+        op.close();
+    }
+
+    private static void run(int rows, long budget) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        OrderBy sort = new OrderBy(new int[]{0, 1}, new boolean[]{true, true}, new Rows(rows));
+        sort.setMemoryBudget(budget);
+        sort.open();
+        long opened = System.nanoTime() - start;
+        System.gc();
+        long retained = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - before);
+        int results = 0;
+        while (sort.hasNext()) {
+            sort.next();
+            results++;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%8d rows, %s budget: %8.1f ms to open, %8.1f ms in all, %8.1f MB retained, %d runs%n",
+                results, budget == Long.MAX_VALUE ? "no" : (budget >> 20) + " MB", opened / 1e6, elapsed / 1e6,
+                retained / 1e6, sort.numRuns());
+        sort.close();
+    }
+
+    /**
+     * Generates rows of (random key, i) for i below rows.
+     */
+    private static class Rows extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int rows;
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private Random random;
+        private int next;
+
+        Rows(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void open() throws simpledb.DbException, simpledb.TransactionAbortedException {
+            rewind();
+            super.open();
+        }
+
+        @Override
+        public void rewind() {
+            this.random = new Random(1);
+            this.next = 0;
+        }
+
+        @Override
+        protected Tuple fetchNext() {
+            if (this.next == this.rows) {
+                return null;
+            }
+            Tuple tuple = new Tuple(this.td);
+            tuple.setField(0, new IntField(this.random.nextInt()));
+            tuple.setField(1, new IntField(this.next));
+            this.next++;
+            return tuple;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return this.td;
+        }
+    }
+}
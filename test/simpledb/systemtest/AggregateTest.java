@@ -133,4 +133,49 @@ public class AggregateTest extends SimpleDbTestBase {
     public void testAverageNoGroup() throws IOException, DbException, TransactionAbortedException {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
+
+    private ArrayList<ArrayList<Integer>> aggregate(ArrayList<ArrayList<Integer>> tuples, Aggregator.Op[] operations,
+            int[] aggregateColumns, int groupColumn) {
+        // Group the tuples
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> groups = new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t : tuples) {
+            Integer key = groupColumn == Aggregator.NO_GROUPING ? null : t.get(groupColumn);
+            if (!groups.containsKey(key))
+                groups.put(key, new ArrayList<ArrayList<Integer>>());
+            groups.get(key).add(t);
+        }
+
+        ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<Integer, ArrayList<ArrayList<Integer>>> e : groups.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>();
+            if (groupColumn != Aggregator.NO_GROUPING)
+                result.add(e.getKey());
+            for (int i = 0; i < operations.length; i++) {
+                ArrayList<Integer> values = new ArrayList<Integer>();
+                for (ArrayList<Integer> t : e.getValue())
+                    values.add(t.get(aggregateColumns[i]));
+                result.add(computeAggregate(values, operations[i]));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Test
+    public void testMultipleAggregates() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+        Aggregator.Op[] operations = { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.AVG };
+        int[] aggregateColumns = { 1, 1, 1, 1, 2 };
+
+        for (int groupColumn : new int[] { 0, Aggregator.NO_GROUPING }) {
+            TransactionId tid = new TransactionId();
+            Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), aggregateColumns, operations,
+                    groupColumn);
+            SystemTestUtil.matchTuples(ag,
+                    aggregate(createdTuples, operations, aggregateColumns, groupColumn));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
 }
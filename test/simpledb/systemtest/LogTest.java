@@ -120,8 +120,10 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        FreeSpaceMap.sideFile(file1).delete();
         file2 = new File("simple2.db");
         file2.delete();
+        FreeSpaceMap.sideFile(file2).delete();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
@@ -187,6 +189,229 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test
+    public void TestConcurrentCommitCrash() throws Exception {
+        setup();
+
+        // *** Test:
+        // commits running at the same time share forces of the log, and
+        // are all durable once they return
+        final int commits = 20;
+        int forces = Database.getLogFile().getNumForces();
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        for (final HeapFile hf : new HeapFile[] { hf1, hf2 }) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < commits; i++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        insertRow(hf, t, 100 + i, 0);
+                        t.commit();
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty());
+        // run one at a time, each commit forces its page and its commit record
+        assertTrue(Database.getLogFile().getNumForces() - forces < 2 * 2 * commits);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < commits; i++) {
+            look(hf1, t, 100 + i, true);
+            look(hf2, t, 100 + i, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void TestUpdateRecordsLogChangedBytes() throws Exception {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // after the first record of a page, single-row commits log the
+        // changed bytes rather than whole pages, and still recover
+        long before = Database.getLogFile().getTotalBytes();
+        for (int i = 0; i < 10; i++) {
+            doInsert(hf1, 10 + i, -1);
+        }
+        assertTrue(Database.getLogFile().getTotalBytes() - before < 10 * BufferPool.getPageSize() / 4);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        for (int i = 0; i < 10; i++) {
+            look(hf1, t, 10 + i, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void TestFuzzyCheckpoint() throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint does not write out the pages of an open
+        // transaction, which is undone by recovery
+        Transaction t1 = new Transaction();
+        t1.start();
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        insertRow(hf1, t1, 3, 0);
+        Database.getLogFile().logCheckpoint();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(xp1.getNumEmptySlots(), xp2.getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestCheckpointDirtyPageTable() throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // an update logged before a checkpoint whose page was not written
+        // yet is redone from the dirty page table
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Page p = Database.getBufferPool().getPage(t1.getId(), new HeapPageId(hf1.getId(), 0), Permissions.READ_WRITE);
+        Database.getLogFile().logWrite(t1.getId(), p.getBeforeImage(), p);
+        Database.getLogFile().logCheckpoint();
+        // commit without writing the page, as if crashing right after
+        Database.getLogFile().logCommit(t1.getId());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test
+    public void TestSegmentTruncation() throws Exception {
+        setup();
+        Database.getLogFile().setCheckpointBytes(0);
+        Database.getLogFile().setSegmentBytes(1024);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint deletes the segments before the first record of
+        // the oldest open transaction, and no others
+        Transaction t1 = new Transaction();
+        t1.start();
+        int older = Database.getLogFile().getNumSegments() - 1;
+        insertRow(hf1, t1, 3, 0);
+        for (int i = 0; i < 20; i++) {
+            doInsert(hf2, 10 + i, -1);
+        }
+        int segments = Database.getLogFile().getNumSegments();
+        assertTrue(older > 0 && segments - older > 2);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(segments - older, Database.getLogFile().getNumSegments());
+
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getNumSegments() <= 2);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        for (int i = 0; i < 20; i++) {
+            look(hf2, t, 10 + i, true);
+        }
+        t.commit();
+    }
+
+    @Test
+    public void TestParallelRedo() throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+        dontInsert(hf1, 3, -1);
+
+        // *** Test:
+        // redo split across threads by page installs committed updates
+        // and the undo of aborts on every page, in log order
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1000; i++) {
+            insertRow(hf2, t1, 10 + i, 0);
+        }
+        t1.commit();
+        doInsert(hf2, 5, -1);
+        dontInsert(hf2, 6, -1);
+        assertTrue(hf2.numPages() > 1);
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(4);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 10, true);
+        look(hf2, t, 1009, true);
+        look(hf2, t, 5, true);
+        look(hf2, t, 6, false);
+        t.commit();
+    }
+
+    @Test
+    public void TestTornRecordCrash() throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a record torn by a crash at the end of the log is dropped, and
+        // the log goes on after it
+        File[] segments = new File("log").listFiles((dir, name) -> name.endsWith(".seg"));
+        Arrays.sort(segments);
+        try (FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true)) {
+            out.write(new byte[5]);
+        }
+
+        crash();
+        doInsert(hf1, 3, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
     @Test
     public void TestAbort() throws IOException, DbException, TransactionAbortedException {
         setup();
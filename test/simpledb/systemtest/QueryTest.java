@@ -1,8 +1,19 @@
 package simpledb.systemtest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
@@ -11,9 +22,15 @@ import simpledb.Database;
 import simpledb.DbException;
 import simpledb.HeapFile;
 import simpledb.HeapFileEncoder;
+import simpledb.Limit;
+import simpledb.OpIterator;
+import simpledb.Operator;
 import simpledb.Parser;
+import simpledb.ParsingException;
 import simpledb.TableStats;
+import simpledb.TopN;
 import simpledb.Transaction;
+import simpledb.TransactionId;
 import simpledb.TransactionAbortedException;
 import simpledb.Utility;
 
@@ -36,6 +53,114 @@ public class QueryTest {
         return Utility.openHeapFile(columns, colPrefix, temp);
     }
 
+    /**
+     * Plans and runs a query with a LIMIT clause, which Zql does not parse.
+     */
+    @Test
+    public void limitTest() throws Exception {
+        HeapFile limited = SystemTestUtil.createRandomHeapFile(2, 100, null, null, "c");
+        Database.getCatalog().addTable(limited, "limited");
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("limited", new TableStats(limited.getId(), 101));
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        OpIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM limited LIMIT 7;").physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(7, count);
+
+        try {
+            p.generateLogicalPlan(tid, "SELECT * FROM limited LIMIT seven;");
+            fail("expected a ParsingException");
+        } catch (ParsingException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Runs queries with LIMIT clauses read from a stream, as from a query
+     * file.
+     */
+    @Test
+    public void limitInStreamTest() throws Exception {
+        HeapFile limited = SystemTestUtil.createRandomHeapFile(2, 100, null, null, "limited.c");
+        Database.getCatalog().addTable(limited, "limited");
+        TableStats.setTableStats("limited", new TableStats(limited.getId(), 101));
+
+        String statements = "SELECT * FROM limited LIMIT 7;\nSELECT *\nFROM limited LIMIT 3;\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            new Parser().processNextStatement(new ByteArrayInputStream(statements.getBytes("UTF-8")));
+        } finally {
+            System.setOut(stdout);
+        }
+        String printed = out.toString();
+        assertFalse(printed, printed.contains("Invalid SQL"));
+        assertTrue(printed, printed.contains(" 7 rows."));
+        assertTrue(printed, printed.contains(" 3 rows."));
+    }
+
+    /**
+     * Plans and runs a query with ORDER BY and LIMIT clauses, which should be
+     * planned as a TopN that returns the first tuples in order.
+     */
+    @Test
+    public void orderByLimitTest() throws Exception {
+        // SeqScan does not prefix field names with the table alias, so name
+        // the columns as the parser refers to them
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile sorted = SystemTestUtil.createRandomHeapFile(2, 200, 10, null, tuples, "sorted.c");
+        Database.getCatalog().addTable(sorted, "sorted");
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("sorted", new TableStats(sorted.getId(), 101));
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM sorted ORDER BY sorted.c0 DESC LIMIT 7;")
+                .physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        assertEquals(7, ((TopN) ((Operator) plan).getChildren()[0]).getLimit());
+
+        // ties stay in the order of the table, as a stable sort leaves them
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, (a, b) -> Integer.compare(b.get(0), a.get(0)));
+        plan.open();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(plan.hasNext());
+            assertEquals(expected.get(i), SystemTestUtil.tupleToList(plan.next()));
+        }
+        assertFalse(plan.hasNext());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A LIMIT is only applied to queries, so other statements with a LIMIT
+     * must be rejected rather than run on every tuple.
+     */
+    @Test
+    public void limitOnlyInQueriesTest() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile limited = SystemTestUtil.createRandomHeapFile(2, 20, null, tuples, "deleted.c");
+        Database.getCatalog().addTable(limited, "deleted");
+        TableStats.setTableStats("deleted", new TableStats(limited.getId(), 101));
+
+        Parser p = new Parser();
+        p.processNextStatement("DELETE FROM deleted WHERE deleted.c0 >= 0 LIMIT 1;");
+        SystemTestUtil.matchTuples(limited, tuples);
+        p.processNextStatement("INSERT INTO deleted SELECT * FROM deleted LIMIT 5;");
+        SystemTestUtil.matchTuples(limited, tuples);
+    }
+
     @Test(timeout = 20000)
     public void queryTest() throws IOException, DbException, TransactionAbortedException {
         // This test is intended to approximate the join described in the